@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the in-flight span table of {@link TracingCommandListener} with the {@code
+ * ConcurrentHashMap<Integer, Span>} it replaces. Request ids are shared between threads as they
+ * are in the driver.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class InFlightTableBenchmark {
+
+  private static final Object VALUE = new Object();
+
+  private final AtomicInteger requestIds = new AtomicInteger();
+  private final InFlightTable<Object> table = new InFlightTable<>();
+  private final Map<Integer, Object> map = new ConcurrentHashMap<>();
+
+  @Benchmark
+  public Object inFlightTable() {
+    int requestId = requestIds.incrementAndGet();
+    table.put(requestId, VALUE, 0, null);
+    return table.remove(requestId);
+  }
+
+  @Benchmark
+  public Object concurrentHashMap() {
+    int requestId = requestIds.incrementAndGet();
+    map.put(requestId, VALUE);
+    return map.remove(requestId);
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.contrib.mongo.common.providers.MongoSpanNameProvider;
+import io.opentracing.contrib.mongo.common.providers.NoopSpanNameProvider;
+import io.opentracing.contrib.mongo.common.providers.OperationCollectionSpanNameProvider;
+import io.opentracing.contrib.mongo.common.providers.PrefixSpanNameProvider;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.noop.NoopTracerFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a {@code commandStarted}/{@code commandSucceeded} round trip of {@link
+ * TracingCommandListener}. Run with {@code -prof gc} to see the allocation per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TracingCommandListenerBenchmark {
+
+  private static final int INSERT_BATCH_SIZE = 1000;
+  private static final String[] EXCLUDED_COMMAND_NAMES = {"find", "insert", "update", "delete",
+      "aggregate", "count", "distinct", "findAndModify", "getMore", "createIndexes"};
+
+  /**
+   * {@code noop} or {@code mock}
+   */
+  @Param({"noop", "mock"})
+  public String tracer;
+
+  /**
+   * {@code find}, a small single document query, or {@code insert}, a batch of documents
+   */
+  @Param({"find", "insert"})
+  public String command;
+
+  /**
+   * {@code noop}, {@code prefix} or {@code operationCollection}
+   */
+  @Param({"noop", "prefix", "operationCollection"})
+  public String spanNameProvider;
+
+  /**
+   * Number of {@link ExcludedCommand}s, spread over real command names including the benchmarked
+   * ones, none of which matches
+   */
+  @Param({"0", "100"})
+  public int excludedCommands;
+
+  /**
+   * Number of decorators, {@link SpanDecorator#DEFAULT} followed by decorators setting a tag
+   */
+  @Param({"1", "4"})
+  public int decorators;
+
+  private TracingCommandListener listener;
+  private ConnectionDescription connectionDescription;
+  private BsonDocument commandDocument;
+  private BsonDocument reply;
+  private int requestId;
+
+  @Setup
+  public void setUp() {
+    listener = new TracingCommandListener.Builder(tracer())
+        .withSpanNameProvider(spanNameProvider())
+        .withExcludedCommands(excludedCommands())
+        .withSpanDecorators(decorators())
+        .build();
+    connectionDescription = new ConnectionDescription(
+        new ServerId(new ClusterId(), new ServerAddress()));
+    commandDocument = "insert".equals(command) ? insertCommand() : findCommand();
+    reply = new RawBsonDocument(new BsonDocument("ok", new BsonInt32(1)),
+        new BsonDocumentCodec());
+  }
+
+  @Benchmark
+  public int startedAndSucceeded() {
+    int id = ++requestId;
+    listener.commandStarted(new CommandStartedEvent(id, connectionDescription, "test", command,
+        commandDocument));
+    listener.commandSucceeded(new CommandSucceededEvent(id, connectionDescription, command,
+        reply, 1000));
+    return id;
+  }
+
+  private Tracer tracer() {
+    if ("mock".equals(tracer)) {
+      // finished spans are not kept, so memory stays flat across iterations
+      return new MockTracer() {
+        @Override
+        protected void onSpanFinished(MockSpan mockSpan) {
+        }
+      };
+    }
+    return NoopTracerFactory.create();
+  }
+
+  private MongoSpanNameProvider spanNameProvider() {
+    switch (spanNameProvider) {
+      case "prefix":
+        return new PrefixSpanNameProvider("mongo.");
+      case "operationCollection":
+        return new OperationCollectionSpanNameProvider();
+      default:
+        return new NoopSpanNameProvider();
+    }
+  }
+
+  private List<ExcludedCommand> excludedCommands() {
+    List<ExcludedCommand> result = new ArrayList<>(excludedCommands);
+    for (int i = 0; i < excludedCommands; i++) {
+      result.add(new ExcludedCommand(EXCLUDED_COMMAND_NAMES[i % EXCLUDED_COMMAND_NAMES.length],
+          new BsonString("collection" + i)));
+    }
+    return result;
+  }
+
+  private List<SpanDecorator> decorators() {
+    List<SpanDecorator> result = new ArrayList<>(decorators);
+    result.add(SpanDecorator.DEFAULT);
+    for (int i = 1; i < decorators; i++) {
+      final String tag = "tag" + i;
+      result.add(new SpanDecorator() {
+        @Override
+        public void commandStarted(CommandStartedEvent event, Span span) {
+          span.setTag(tag, event.getCommandName());
+        }
+
+        @Override
+        public void commandSucceeded(CommandSucceededEvent event, Span span) {
+        }
+
+        @Override
+        public void commandFailed(CommandFailedEvent event, Span span) {
+        }
+      });
+    }
+    return result;
+  }
+
+  private static BsonDocument findCommand() {
+    BsonDocument find = new BsonDocument("find", new BsonString("users"))
+        .append("filter", new BsonDocument("_id", new BsonObjectId()))
+        .append("limit", new BsonInt32(1))
+        .append("$db", new BsonString("test"));
+    return new RawBsonDocument(find, new BsonDocumentCodec());
+  }
+
+  /**
+   * Insert commands reach listeners with their documents decoded into an array
+   */
+  private static BsonDocument insertCommand() {
+    BsonArray documents = new BsonArray();
+    for (int i = 0; i < INSERT_BATCH_SIZE; i++) {
+      documents.add(new BsonDocument("_id", new BsonObjectId())
+          .append("name", new BsonString("user" + i))
+          .append("age", new BsonInt32(i % 100)));
+    }
+    return new BsonDocument("insert", new BsonString("users"))
+        .append("ordered", BsonBoolean.TRUE)
+        .append("$db", new BsonString("test"))
+        .append("documents", documents);
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.opentracing.Span;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the {@code commandSucceeded} and {@code commandFailed} decorators and finishes spans on
+ * dedicated daemon threads instead of the driver threads.
+ *
+ * <p>Each finisher thread drains its own bounded multi-producer single-consumer ring. A driver
+ * thread claims a slot with a CAS on the tail and publishes it with a per-slot sequence number,
+ * so enqueueing takes no lock and allocates nothing. Replies are {@code RawBsonDocument}s owning
+ * their bytes, so events stay readable once the listener returned. Finish timestamps are computed
+ * on enqueue, so queueing delay does not show in the span duration.
+ *
+ * <p>{@link #close()} stops the threads once they drained their rings. Spans completing
+ * afterwards are finished on the calling thread, as are spans a producer enqueued after the final
+ * drain of their ring.
+ */
+final class AsyncSpanFinisher {
+  private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final FullQueuePolicy fullQueuePolicy;
+  private final Ring[] rings;
+  private final AtomicLong droppedSpans = new AtomicLong();
+  private volatile boolean closed;
+
+  AsyncSpanFinisher(int queueCapacity, int threads, FullQueuePolicy fullQueuePolicy) {
+    // a single slot could not tell a span waiting for the consumer from a free slot
+    if (queueCapacity < 2 || Integer.bitCount(queueCapacity) != 1) {
+      throw new IllegalArgumentException("queueCapacity must be a power of two of at least 2");
+    }
+    if (threads <= 0) {
+      throw new IllegalArgumentException("threads must be positive");
+    }
+    this.fullQueuePolicy = fullQueuePolicy;
+    this.rings = new Ring[threads];
+    for (int i = 0; i < threads; i++) {
+      rings[i] = new Ring(queueCapacity);
+      Thread thread = new Thread(rings[i], "mongo-span-finisher-" + i);
+      thread.setDaemon(true);
+      rings[i].consumer = thread;
+      thread.start();
+    }
+  }
+
+  void commandSucceeded(CommandSucceededEvent event, Span span, SpanDecorator[] decorators,
+      long finishMicros) {
+    enqueue(event.getRequestId(), span, event, decorators, finishMicros);
+  }
+
+  void commandFailed(CommandFailedEvent event, Span span, SpanDecorator[] decorators,
+      long finishMicros) {
+    enqueue(event.getRequestId(), span, event, decorators, finishMicros);
+  }
+
+  private void enqueue(int requestId, Span span, Object event, SpanDecorator[] decorators,
+      long finishMicros) {
+    if (closed) {
+      finish(span, event, decorators, finishMicros);
+      return;
+    }
+    Ring ring = ring(requestId);
+    if (!ring.offer(span, event, decorators, finishMicros)) {
+      queueFull(span, event, decorators, finishMicros);
+    } else if (closed) {
+      // closed while offering, the final drain of the ring may have missed the span
+      ring.drainClosed();
+    }
+  }
+
+  /**
+   * Finishes the queued spans and stops the finisher threads, waiting for them to terminate
+   */
+  void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    boolean interrupted = false;
+    for (Ring ring : rings) {
+      LockSupport.unpark(ring.consumer);
+      while (true) {
+        try {
+          ring.consumer.join();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      ring.drain();
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  long getDroppedSpans() {
+    return droppedSpans.get();
+  }
+
+  private Ring ring(int requestId) {
+    return rings[(requestId & Integer.MAX_VALUE) % rings.length];
+  }
+
+  private void queueFull(Span span, Object event, SpanDecorator[] decorators,
+      long finishMicros) {
+    if (fullQueuePolicy == FullQueuePolicy.FINISH_INLINE) {
+      finish(span, event, decorators, finishMicros);
+    } else {
+      droppedSpans.incrementAndGet();
+    }
+  }
+
+  private static void finish(Span span, Object event, SpanDecorator[] decorators,
+      long finishMicros) {
+    if (event instanceof CommandSucceededEvent) {
+      for (SpanDecorator decorator : decorators) {
+        decorator.commandSucceeded((CommandSucceededEvent) event, span);
+      }
+    } else {
+      for (SpanDecorator decorator : decorators) {
+        decorator.commandFailed((CommandFailedEvent) event, span);
+      }
+    }
+    span.finish(finishMicros);
+  }
+
+  private final class Ring implements Runnable {
+    private final int mask;
+    /**
+     * Slot {@code i} is free for the producer of position {@code p} when its sequence is {@code p}
+     * and holds a span for the consumer when it is {@code p + 1}
+     */
+    private final AtomicLongArray sequences;
+    private final Span[] spans;
+    private final Object[] events;
+    private final SpanDecorator[][] decorators;
+    private final long[] finishMicros;
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Only read and written by the consumer
+     */
+    private long head;
+    private volatile boolean parked;
+    private volatile Thread consumer;
+    // guarded by this
+    private boolean drained;
+
+    private Ring(int capacity) {
+      this.mask = capacity - 1;
+      this.sequences = new AtomicLongArray(capacity);
+      for (int i = 0; i < capacity; i++) {
+        sequences.set(i, i);
+      }
+      this.spans = new Span[capacity];
+      this.events = new Object[capacity];
+      this.decorators = new SpanDecorator[capacity][];
+      this.finishMicros = new long[capacity];
+    }
+
+    private boolean offer(Span span, Object event, SpanDecorator[] spanDecorators, long micros) {
+      while (true) {
+        long position = tail.get();
+        int index = (int) position & mask;
+        long diff = sequences.get(index) - position;
+        if (diff < 0) {
+          return false;
+        }
+        if (diff == 0 && tail.compareAndSet(position, position + 1)) {
+          spans[index] = span;
+          events[index] = event;
+          decorators[index] = spanDecorators;
+          finishMicros[index] = micros;
+          sequences.set(index, position + 1);
+          if (parked) {
+            LockSupport.unpark(consumer);
+          }
+          return true;
+        }
+      }
+    }
+
+    /**
+     * @return whether a span was finished
+     */
+    private boolean poll() {
+      int index = (int) head & mask;
+      if (sequences.get(index) != head + 1) {
+        return false;
+      }
+      Span span = spans[index];
+      Object event = events[index];
+      SpanDecorator[] spanDecorators = decorators[index];
+      long micros = finishMicros[index];
+      spans[index] = null;
+      events[index] = null;
+      decorators[index] = null;
+      sequences.set(index, head + mask + 1);
+      head++;
+      try {
+        finish(span, event, spanDecorators, micros);
+      } catch (Throwable ignored) {
+        // a failing decorator or tracer must not stop the finisher thread
+      }
+      return true;
+    }
+
+    /**
+     * Finishes the spans offered while the consumer was exiting, once it terminated
+     */
+    private synchronized void drain() {
+      while (poll()) {
+      }
+      drained = true;
+    }
+
+    /**
+     * Finishes the spans offered after {@link #drain()}, which otherwise finishes them itself
+     */
+    private synchronized void drainClosed() {
+      if (drained) {
+        while (poll()) {
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        if (poll()) {
+          continue;
+        }
+        if (closed) {
+          return;
+        }
+        parked = true;
+        // recheck after publishing the flag, a producer may have missed it
+        if (!poll()) {
+          LockSupport.parkNanos(this, MAX_PARK_NANOS);
+        }
+        parked = false;
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.opentracing.Span;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+/**
+ * Summarizes {@code insert}, {@code update} and {@code delete} commands: the number of documents
+ * of their payload and the ordered flag when started, the {@code n}, {@code nModified} and write
+ * error counts of their reply when succeeded. Payload documents are not decoded.
+ */
+final class BulkWriteSpanDecorator implements SpanDecorator {
+  static final String DOCUMENTS_TAG = "bulk.documents";
+  static final String ORDERED_TAG = "bulk.ordered";
+  static final String N_TAG = "bulk.n";
+  static final String N_MODIFIED_TAG = "bulk.n_modified";
+  static final String WRITE_ERRORS_TAG = "bulk.write_errors";
+
+  private static final String ORDERED = "ordered";
+  private static final String N = "n";
+  private static final String N_MODIFIED = "nModified";
+  private static final String WRITE_ERRORS = "writeErrors";
+
+  @Override
+  public void commandStarted(CommandStartedEvent event, Span span) {
+    BsonArray payload = payload(event.getCommandName(), event.getCommand());
+    if (payload == null) {
+      return;
+    }
+    span.setTag(DOCUMENTS_TAG, payload.size());
+    BsonValue ordered = event.getCommand().get(ORDERED);
+    span.setTag(ORDERED_TAG, ordered == null || !ordered.isBoolean()
+        || ordered.asBoolean().getValue());
+  }
+
+  @Override
+  public void commandSucceeded(CommandSucceededEvent event, Span span) {
+    if (payloadName(event.getCommandName()) == null || event.getResponse() == null) {
+      return;
+    }
+    BsonDocument reply = event.getResponse();
+    BsonValue n = reply.get(N);
+    if (n != null && n.isNumber()) {
+      span.setTag(N_TAG, n.asNumber().intValue());
+    }
+    BsonValue nModified = reply.get(N_MODIFIED);
+    if (nModified != null && nModified.isNumber()) {
+      span.setTag(N_MODIFIED_TAG, nModified.asNumber().intValue());
+    }
+    BsonValue writeErrors = reply.get(WRITE_ERRORS);
+    span.setTag(WRITE_ERRORS_TAG, writeErrors != null && writeErrors.isArray()
+        ? writeErrors.asArray().size() : 0);
+  }
+
+  @Override
+  public void commandFailed(CommandFailedEvent event, Span span) {
+  }
+
+  private static BsonArray payload(String commandName, BsonDocument command) {
+    String payloadName = payloadName(commandName);
+    BsonValue payload = payloadName == null ? null : command.get(payloadName);
+    return payload != null && payload.isArray() ? payload.asArray() : null;
+  }
+
+  /**
+   * @return the name of the payload array of write commands, otherwise {@code null}
+   */
+  private static String payloadName(String commandName) {
+    switch (commandName) {
+      case "insert":
+        return "documents";
+      case "update":
+        return "updates";
+      case "delete":
+        return "deletes";
+      default:
+        return null;
+    }
+  }
+}
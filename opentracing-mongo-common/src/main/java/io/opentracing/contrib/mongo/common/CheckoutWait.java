@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import com.mongodb.connection.ConnectionId;
+
+/**
+ * Connection checkout of the current thread, correlating the wait for a pooled connection with the
+ * first command sent on it. The wait is only known when the thread which entered the wait queue is
+ * the one checking out the connection, as in the synchronous driver.
+ */
+final class CheckoutWait {
+  private static final ThreadLocal<CheckoutWait> CURRENT = new ThreadLocal<CheckoutWait>() {
+    @Override
+    protected CheckoutWait initialValue() {
+      return new CheckoutWait();
+    }
+  };
+
+  private boolean waiting;
+  private long waitStartNanos;
+  private ConnectionId connectionId;
+  private long waitNanos;
+
+  static CheckoutWait current() {
+    return CURRENT.get();
+  }
+
+  void waitQueueEntered(long now) {
+    waiting = true;
+    waitStartNanos = now;
+  }
+
+  /**
+   * @return time waited for the connection, -1 if the thread did not enter the wait queue
+   */
+  long connectionCheckedOut(ConnectionId connectionId, long now) {
+    if (!waiting) {
+      return -1;
+    }
+    waiting = false;
+    this.connectionId = connectionId;
+    this.waitNanos = now - waitStartNanos;
+    return waitNanos;
+  }
+
+  /**
+   * @return time waited for the connection of the command if it is the first one sent on it by
+   * this thread, otherwise -1
+   */
+  long commandStarted(ConnectionId connectionId) {
+    ConnectionId checkedOut = this.connectionId;
+    if (checkedOut == null) {
+      return -1;
+    }
+    this.connectionId = null;
+    // the server value is only known once the connection is established
+    return checkedOut.getLocalValue() == connectionId.getLocalValue()
+        && checkedOut.getServerId().equals(connectionId.getServerId()) ? waitNanos : -1;
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import com.mongodb.ServerAddress;
+
+/**
+ * Database, collection, command name and server of a command, any of which may be {@code null}.
+ * Mutable so that lookups with a thread-local key don't allocate; keys stored in maps are
+ * {@link #copy()}s.
+ */
+final class CommandKey {
+  private String database;
+  private String collection;
+  private String commandName;
+  private ServerAddress server;
+  private int hashCode;
+
+  CommandKey set(String database, String collection, String commandName, ServerAddress server) {
+    this.database = database;
+    this.collection = collection;
+    this.commandName = commandName;
+    this.server = server;
+    int hash = hashCode(database);
+    hash = 31 * hash + hashCode(collection);
+    hash = 31 * hash + hashCode(commandName);
+    this.hashCode = 31 * hash + hashCode(server);
+    return this;
+  }
+
+  CommandKey copy() {
+    return new CommandKey().set(database, collection, commandName, server);
+  }
+
+  String getDatabase() {
+    return database;
+  }
+
+  String getCollection() {
+    return collection;
+  }
+
+  String getCommandName() {
+    return commandName;
+  }
+
+  ServerAddress getServer() {
+    return server;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof CommandKey)) {
+      return false;
+    }
+    CommandKey other = (CommandKey) o;
+    return hashCode == other.hashCode && equal(database, other.database)
+        && equal(collection, other.collection) && equal(commandName, other.commandName)
+        && equal(server, other.server);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  private static int hashCode(Object o) {
+    return o == null ? 0 : o.hashCode();
+  }
+
+  private static boolean equal(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+/**
+ * Reads the names a command refers to from its document
+ */
+public final class CommandNames {
+  private static final String COLLECTION_KEY = "collection";
+  private CommandNames() {
+  }
+
+  /**
+   * Whether the given key is a field carried by commands of different names: a generic argument
+   * such as {@code $db}, or the {@code collection} of {@code getMore}
+   */
+  static boolean isSharedField(String key) {
+    return key.startsWith("$") || COLLECTION_KEY.equals(key);
+  }
+
+  /**
+   * The collection of a command: the value of its first key, or of the {@code collection} key
+   * for {@code getMore}, or {@code null} if neither is a string
+   */
+  public static String collection(BsonDocument command, String commandName) {
+    BsonValue value = command.get(commandName);
+    if (value == null || !value.isString()) {
+      value = command.get(COLLECTION_KEY);
+    }
+    return value != null && value.isString() ? value.asString().getValue() : null;
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import com.mongodb.connection.ConnectionId;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.opentracing.Span;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+/**
+ * Aggregates the {@code getMore} commands of a cursor into the span of the {@code find} or {@code
+ * aggregate} command which opened it. The span stays open until the cursor is exhausted or killed,
+ * recording the number of batches, the documents returned and the total server time.
+ *
+ * <p>Open cursors are kept by cursor id in a table bounded by the listener's in-flight limit, and
+ * {@code getMore}s in flight by request id in a separate table.
+ */
+final class CursorSpans {
+  static final String BATCHES_TAG = "cursor.batches";
+  static final String DOCUMENTS_TAG = "cursor.documents";
+  static final String SERVER_TIME_TAG = "cursor.server_time_us";
+  static final String KILLED_TAG = "cursor.killed";
+
+  private static final String FIND = "find";
+  private static final String AGGREGATE = "aggregate";
+  private static final String GET_MORE = "getMore";
+  private static final String KILL_CURSORS = "killCursors";
+  private static final String CURSOR = "cursor";
+  private static final String CURSORS = "cursors";
+  private static final String ID = "id";
+  private static final String FIRST_BATCH = "firstBatch";
+  private static final String NEXT_BATCH = "nextBatch";
+
+  private final ConcurrentMap<Long, Cursor> cursors = new ConcurrentHashMap<>();
+  private final InFlightTable<Cursor> getMores = new InFlightTable<>();
+
+  /**
+   * @return whether the command is a {@code getMore} of an open cursor, which gets no span of its
+   * own
+   */
+  boolean commandStarted(CommandStartedEvent event, long now) {
+    String commandName = event.getCommandName();
+    if (GET_MORE.equals(commandName)) {
+      Cursor cursor = cursor(event.getCommand().get(GET_MORE),
+          event.getConnectionDescription().getConnectionId());
+      if (cursor == null) {
+        return false;
+      }
+      cursor.lastActivityNanos = now;
+      getMores.put(event.getRequestId(), cursor, now,
+          event.getConnectionDescription().getConnectionId());
+      return true;
+    }
+    if (KILL_CURSORS.equals(commandName)) {
+      BsonValue ids = event.getCommand().get(CURSORS);
+      if (ids != null && ids.isArray()) {
+        for (BsonValue id : ids.asArray()) {
+          Cursor cursor = cursor(id, event.getConnectionDescription().getConnectionId());
+          if (cursor != null && cursors.remove(cursor.id, cursor)) {
+            cursor.span.setTag(KILLED_TAG, true);
+            cursor.finish();
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return whether the reply is the one of an aggregated {@code getMore}
+   */
+  boolean commandSucceeded(CommandSucceededEvent event) {
+    if (!GET_MORE.equals(event.getCommandName())) {
+      return false;
+    }
+    Cursor cursor = getMores.remove(event.getRequestId());
+    if (cursor == null) {
+      return false;
+    }
+    BsonDocument reply = cursorReply(event.getResponse());
+    cursor.batchReturned(reply, NEXT_BATCH, event.getElapsedTime(TimeUnit.NANOSECONDS));
+    if (reply == null || cursorId(reply) == 0) {
+      if (cursors.remove(cursor.id, cursor)) {
+        cursor.finish();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return whether the failure is the one of an aggregated {@code getMore}
+   */
+  boolean commandFailed(CommandFailedEvent event) {
+    if (!GET_MORE.equals(event.getCommandName())) {
+      return false;
+    }
+    Cursor cursor = getMores.remove(event.getRequestId());
+    if (cursor == null) {
+      return false;
+    }
+    if (cursors.remove(cursor.id, cursor)) {
+      for (SpanDecorator decorator : cursor.decorators) {
+        decorator.commandFailed(event, cursor.span);
+      }
+      cursor.finish();
+    }
+    return true;
+  }
+
+  /**
+   * Keeps the span of a {@code find} or {@code aggregate} open if its reply opened a cursor
+   *
+   * @return whether the span is kept open
+   */
+  boolean cursorOpened(CommandSucceededEvent event, Span span, SpanDecorator[] decorators,
+      long now) {
+    if (!opensCursor(event.getCommandName())) {
+      return false;
+    }
+    BsonDocument reply = cursorReply(event.getResponse());
+    if (reply == null) {
+      return false;
+    }
+    long id = cursorId(reply);
+    Cursor cursor = new Cursor(id, span, decorators,
+        event.getConnectionDescription().getConnectionId().getServerId(), now);
+    cursor.batchReturned(reply, FIRST_BATCH, event.getElapsedTime(TimeUnit.NANOSECONDS));
+    if (id == 0 || cursors.putIfAbsent(id, cursor) != null) {
+      cursor.tag();
+      return false;
+    }
+    return true;
+  }
+
+  static boolean opensCursor(String commandName) {
+    return FIND.equals(commandName) || AGGREGATE.equals(commandName);
+  }
+
+  /**
+   * Evicts {@code getMore}s in flight. The span of their cursor is evicted with them.
+   */
+  void evictGetMores(InFlightTable.EntryFilter filter, final InFlightTable.Evictor<Span> evictor) {
+    getMores.evictIf(filter, new InFlightTable.Evictor<Cursor>() {
+      @Override
+      public void evicted(Cursor cursor) {
+        if (cursors.remove(cursor.id, cursor)) {
+          cursor.tag();
+          evictor.evicted(cursor.span);
+        }
+      }
+    });
+  }
+
+  /**
+   * Evicts open cursors idle for the given time or belonging to the given server
+   *
+   * @param serverId may be {@code null}
+   */
+  void evictCursors(long now, long maxIdleNanos, ServerId serverId,
+      InFlightTable.Evictor<Span> evictor) {
+    for (Iterator<Cursor> iterator = cursors.values().iterator(); iterator.hasNext(); ) {
+      Cursor cursor = iterator.next();
+      if (cursor.serverId.equals(serverId) || now - cursor.lastActivityNanos >= maxIdleNanos) {
+        if (cursors.remove(cursor.id, cursor)) {
+          cursor.tag();
+          evictor.evicted(cursor.span);
+        }
+      }
+    }
+  }
+
+  int size() {
+    return cursors.size() + getMores.size();
+  }
+
+  /**
+   * @param id cursor id, matched against cursors opened on the server of the connection
+   */
+  private Cursor cursor(BsonValue id, ConnectionId connectionId) {
+    if (id == null || !id.isInt64()) {
+      return null;
+    }
+    Cursor cursor = cursors.get(id.asInt64().getValue());
+    return cursor != null && cursor.serverId.equals(connectionId.getServerId()) ? cursor : null;
+  }
+
+  private static BsonDocument cursorReply(BsonDocument response) {
+    BsonValue cursor = response == null ? null : response.get(CURSOR);
+    return cursor != null && cursor.isDocument() ? cursor.asDocument() : null;
+  }
+
+  private static long cursorId(BsonDocument cursorReply) {
+    BsonValue id = cursorReply.get(ID);
+    return id != null && id.isInt64() ? id.asInt64().getValue() : 0;
+  }
+
+  private static final class Cursor {
+    private final long id;
+    private final Span span;
+    /**
+     * Decorators of the command which opened the cursor, applied to a failed {@code getMore}
+     */
+    private final SpanDecorator[] decorators;
+    private final ServerId serverId;
+    private volatile long lastActivityNanos;
+    // guarded by this, getMores of a cursor don't overlap
+    private int batches;
+    private long documents;
+    private long serverTimeNanos;
+
+    private Cursor(long id, Span span, SpanDecorator[] decorators, ServerId serverId, long now) {
+      this.id = id;
+      this.span = span;
+      this.decorators = decorators;
+      this.serverId = serverId;
+      this.lastActivityNanos = now;
+    }
+
+    private synchronized void batchReturned(BsonDocument reply, String batchKey,
+        long elapsedNanos) {
+      batches++;
+      serverTimeNanos += elapsedNanos;
+      BsonValue batch = reply == null ? null : reply.get(batchKey);
+      if (batch != null && batch.isArray()) {
+        documents += batch.asArray().size();
+      }
+    }
+
+    private synchronized void tag() {
+      span.setTag(BATCHES_TAG, batches);
+      span.setTag(DOCUMENTS_TAG, documents);
+      span.setTag(SERVER_TIME_TAG, TimeUnit.NANOSECONDS.toMicros(serverTimeNanos));
+    }
+
+    private void finish() {
+      tag();
+      span.finish(Timestamps.toEpochMicros(System.nanoTime()));
+    }
+  }
+}
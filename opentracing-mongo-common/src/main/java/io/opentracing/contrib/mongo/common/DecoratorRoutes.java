@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import com.mongodb.event.CommandStartedEvent;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes commands to the decorators applied to their spans. Every command gets the default
+ * decorators, followed by the decorators of each route matching its database, collection and
+ * command name, in the order the routes were added.
+ *
+ * <p>The decorators of a (database, collection, command name) combination are resolved once and
+ * cached as an array, so a command costs a single lookup with a thread-local key, and decorators
+ * which do not apply are never called. Combinations beyond the cache size are resolved on every
+ * command.
+ */
+final class DecoratorRoutes {
+  static final int MAX_CACHED_ROUTES = 1000;
+
+  private static final ThreadLocal<CommandKey> LOOKUP_KEY = new ThreadLocal<CommandKey>() {
+    @Override
+    protected CommandKey initialValue() {
+      return new CommandKey();
+    }
+  };
+
+  private final SpanDecorator[] defaults;
+  private final List<Route> routes;
+  private final boolean matchesCollection;
+  private final ConcurrentMap<CommandKey, SpanDecorator[]> cache = new ConcurrentHashMap<>();
+  private final AtomicInteger cacheSize = new AtomicInteger();
+
+  DecoratorRoutes(List<SpanDecorator> defaults, List<Route> routes) {
+    this.defaults = defaults.toArray(new SpanDecorator[defaults.size()]);
+    this.routes = new ArrayList<>(routes);
+    boolean matchesCollection = false;
+    for (Route route : routes) {
+      matchesCollection |= route.collection != null;
+    }
+    this.matchesCollection = matchesCollection;
+  }
+
+  /**
+   * Decorators of commands which match no route
+   */
+  SpanDecorator[] defaults() {
+    return defaults;
+  }
+
+  boolean isEmpty() {
+    return routes.isEmpty();
+  }
+
+  SpanDecorator[] decorators(CommandStartedEvent event) {
+    if (routes.isEmpty()) {
+      return defaults;
+    }
+    String collection = matchesCollection
+        ? CommandNames.collection(event.getCommand(), event.getCommandName()) : null;
+    CommandKey key = LOOKUP_KEY.get().set(event.getDatabaseName(), collection,
+        event.getCommandName(), null);
+    SpanDecorator[] decorators = cache.get(key);
+    if (decorators != null) {
+      return decorators;
+    }
+    decorators = resolve(key);
+    if (cacheSize.get() < MAX_CACHED_ROUTES
+        && cache.putIfAbsent(key.copy(), decorators) == null) {
+      cacheSize.incrementAndGet();
+    }
+    return decorators;
+  }
+
+  private SpanDecorator[] resolve(CommandKey key) {
+    Set<SpanDecorator> decorators = null;
+    for (Route route : routes) {
+      if (route.matches(key)) {
+        if (decorators == null) {
+          decorators = new LinkedHashSet<>();
+          for (SpanDecorator decorator : defaults) {
+            decorators.add(decorator);
+          }
+        }
+        decorators.addAll(route.decorators);
+      }
+    }
+    return decorators == null ? defaults : decorators.toArray(new SpanDecorator[0]);
+  }
+
+  /**
+   * Decorators of commands with the given database, collection and command name, {@code null}
+   * matching any
+   */
+  static final class Route {
+    final String database;
+    final String collection;
+    final String commandName;
+    final List<SpanDecorator> decorators;
+
+    Route(String database, String collection, String commandName,
+        List<SpanDecorator> decorators) {
+      this.database = database;
+      this.collection = collection;
+      this.commandName = commandName;
+      this.decorators = new ArrayList<>(decorators);
+    }
+
+    private boolean matches(CommandKey key) {
+      return (database == null || database.equals(key.getDatabase()))
+          && (collection == null || collection.equals(key.getCollection()))
+          && (commandName == null || commandName.equals(key.getCommandName()));
+    }
+  }
+}
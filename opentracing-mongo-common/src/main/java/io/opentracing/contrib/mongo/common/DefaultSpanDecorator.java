@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import static io.opentracing.contrib.mongo.common.TracingCommandListener.COMPONENT_NAME;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.opentracing.Span;
+import io.opentracing.tag.Tags;
+
+/**
+ * Implementation of {@link SpanDecorator#DEFAULT}
+ */
+final class DefaultSpanDecorator implements SpanDecorator {
+
+  private final StatementRenderer statementRenderer;
+  private final FailureLogPolicy failureLogPolicy;
+
+  DefaultSpanDecorator() {
+    this(StatementRenderer.DEFAULT, FailureLogPolicy.DEFAULT);
+  }
+
+  DefaultSpanDecorator(StatementRenderer statementRenderer, FailureLogPolicy failureLogPolicy) {
+    this.statementRenderer = statementRenderer;
+    this.failureLogPolicy = failureLogPolicy;
+  }
+
+  @Override
+  public void commandStarted(CommandStartedEvent event, Span span) {
+    commandStarted(event, span, true);
+  }
+
+  /**
+   * @param statement whether to render the {@code db.statement} tag
+   */
+  void commandStarted(CommandStartedEvent event, Span span, boolean statement) {
+    Tags.COMPONENT.set(span, COMPONENT_NAME);
+    if (statement) {
+      Tags.DB_STATEMENT.set(span, statementRenderer.render(event.getCommand()));
+    }
+    Tags.DB_INSTANCE.set(span, event.getDatabaseName());
+
+    PeerTags.of(event.getConnectionDescription().getServerAddress()).apply(span);
+    Tags.DB_TYPE.set(span, "mongo");
+  }
+
+  @Override
+  public void commandSucceeded(CommandSucceededEvent event, Span span) {
+  }
+
+  @Override
+  public void commandFailed(CommandFailedEvent event, Span span) {
+    Tags.ERROR.set(span, Boolean.TRUE);
+    span.log(failureLogPolicy.errorLogs(event.getThrowable()));
+  }
+}
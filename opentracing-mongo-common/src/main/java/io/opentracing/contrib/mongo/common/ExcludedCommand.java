@@ -17,7 +17,8 @@ import org.bson.BsonDocument;
 import org.bson.BsonValue;
 
 /**
- * Command to be excluded from tracing
+ * Command to be excluded from tracing. The first key is the command name. Every key must be present
+ * in the command with the given value, or with any value for {@link org.bson.BsonNull#VALUE}.
  */
 public class ExcludedCommand extends BsonDocument {
   public ExcludedCommand() {
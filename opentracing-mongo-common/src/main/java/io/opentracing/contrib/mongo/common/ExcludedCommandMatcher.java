@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import com.mongodb.event.CommandStartedEvent;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.bson.BsonDocument;
+import org.bson.BsonNull;
+import org.bson.BsonValue;
+
+/**
+ * {@link ExcludedCommand}s compiled into a lookup by their first key, which is probed with the
+ * command name. A command whose name is not the first key of any excluded command costs a single
+ * hash lookup. Excluded commands whose first key is a field shared by commands, such as
+ * {@code {collection: "x"}} or {@code {$db: "admin"}}, are also matched against every command, as
+ * they were before the lookup.
+ */
+final class ExcludedCommandMatcher {
+  private static final Exclusion[] NO_EXCLUSIONS = new Exclusion[0];
+
+  private final Map<String, Exclusion[]> exclusionsByCommandName;
+  private final Exclusion[] otherExclusions;
+  private final boolean excludeAll;
+
+  ExcludedCommandMatcher(List<ExcludedCommand> excludedCommands) {
+    Map<String, List<Exclusion>> exclusions = new HashMap<>();
+    List<Exclusion> otherExclusions = new ArrayList<>();
+    boolean excludeAll = false;
+    for (ExcludedCommand excludedCommand : excludedCommands) {
+      if (excludedCommand.isEmpty()) {
+        excludeAll = true;
+        continue;
+      }
+      String firstKey = excludedCommand.getFirstKey();
+      Exclusion exclusion = new Exclusion(excludedCommand);
+      List<Exclusion> commandExclusions = exclusions.get(firstKey);
+      if (commandExclusions == null) {
+        commandExclusions = new ArrayList<>();
+        exclusions.put(firstKey, commandExclusions);
+      }
+      commandExclusions.add(exclusion);
+      if (CommandNames.isSharedField(firstKey)) {
+        otherExclusions.add(exclusion);
+      }
+    }
+    this.excludeAll = excludeAll;
+    this.otherExclusions = otherExclusions.isEmpty()
+        ? NO_EXCLUSIONS : otherExclusions.toArray(new Exclusion[otherExclusions.size()]);
+    this.exclusionsByCommandName = new HashMap<>(exclusions.size());
+    for (Entry<String, List<Exclusion>> entry : exclusions.entrySet()) {
+      exclusionsByCommandName.put(entry.getKey(),
+          entry.getValue().toArray(new Exclusion[entry.getValue().size()]));
+    }
+  }
+
+  boolean isExcluded(CommandStartedEvent event) {
+    if (excludeAll) {
+      return true;
+    }
+    Exclusion[] exclusions = exclusionsByCommandName.get(event.getCommandName());
+    return (exclusions != null && matchesAny(exclusions, event.getCommand()))
+        || (otherExclusions.length != 0 && matchesAny(otherExclusions, event.getCommand()));
+  }
+
+  private static boolean matchesAny(Exclusion[] exclusions, BsonDocument command) {
+    for (Exclusion exclusion : exclusions) {
+      if (exclusion.matches(command)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Keys with the values they must have, {@code null} standing for any value
+   */
+  private static final class Exclusion {
+    private final String[] keys;
+    private final BsonValue[] values;
+
+    private Exclusion(ExcludedCommand excludedCommand) {
+      this.keys = new String[excludedCommand.size()];
+      this.values = new BsonValue[excludedCommand.size()];
+      int index = 0;
+      for (Entry<String, BsonValue> entry : excludedCommand.entrySet()) {
+        keys[index] = entry.getKey();
+        values[index] = entry.getValue() == BsonNull.VALUE ? null : entry.getValue();
+        index++;
+      }
+    }
+
+    private boolean matches(BsonDocument command) {
+      for (int i = 0; i < keys.length; i++) {
+        BsonValue value = command.get(keys[i]);
+        if (value == null || (values[i] != null && !values[i].equals(value))) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
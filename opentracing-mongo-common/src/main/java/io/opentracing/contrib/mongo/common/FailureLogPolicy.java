@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import com.mongodb.MongoCommandException;
+import io.opentracing.tag.Tags;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides what {@link SpanDecorator#DEFAULT} logs for a failed command.
+ *
+ * <p>By default the full stack trace of the failure is rendered for every failed command, which
+ * gets expensive when many commands fail at once, e.g. during a failover. Rendering can be limited
+ * by logging only the error code of {@link MongoCommandException}s, limiting the number of frames,
+ * reusing rendered stack traces of identical failures and capping the number of stack traces
+ * rendered per second. Failures beyond the cap are logged without stack trace.
+ */
+public class FailureLogPolicy {
+
+  public static final int UNLIMITED = 0;
+  public static final int DEFAULT_STACK_CACHE_SIZE = 256;
+
+  static final String ERROR_CODE = "error.code";
+  static final String ERROR_CODE_NAME = "error.code_name";
+
+  private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  public static final FailureLogPolicy DEFAULT = new Builder().build();
+
+  private final boolean commandErrorCodesOnly;
+  private final int maxStackDepth;
+  private final FingerprintCache<String> stacks;
+  private final int maxStacksPerSecond;
+  private final AtomicLong windowStartNanos = new AtomicLong(System.nanoTime());
+  private final AtomicInteger stacksInWindow = new AtomicInteger();
+
+  public static class Builder {
+    private boolean commandErrorCodesOnly;
+    private int maxStackDepth = UNLIMITED;
+    private int stackCacheSize;
+    private int maxStacksPerSecond = UNLIMITED;
+
+    /**
+     * Log the code and code name of {@link MongoCommandException}s instead of their stack trace.
+     */
+    public Builder withCommandErrorCodesOnly() {
+      this.commandErrorCodesOnly = true;
+      return this;
+    }
+
+    /**
+     * Maximum number of frames rendered per exception of the cause chain, {@link #UNLIMITED} by
+     * default. Suppressed exceptions are not rendered when limited.
+     */
+    public Builder withMaxStackDepth(int maxStackDepth) {
+      this.maxStackDepth = maxStackDepth;
+      return this;
+    }
+
+    /**
+     * Reuse the rendered stack trace of failures with the same message and stack. Stack traces
+     * not used recently are evicted first.
+     */
+    public Builder withStackCache() {
+      return withStackCacheSize(DEFAULT_STACK_CACHE_SIZE);
+    }
+
+    /**
+     * Like {@link #withStackCache()}, keeping up to the given number of stack traces.
+     */
+    public Builder withStackCacheSize(int stackCacheSize) {
+      this.stackCacheSize = stackCacheSize;
+      return this;
+    }
+
+    /**
+     * Maximum number of stack traces rendered per second, {@link #UNLIMITED} by default. Stack
+     * traces found in the cache don't count.
+     */
+    public Builder withMaxStacksPerSecond(int maxStacksPerSecond) {
+      this.maxStacksPerSecond = maxStacksPerSecond;
+      return this;
+    }
+
+    public FailureLogPolicy build() {
+      if (maxStackDepth < 0) {
+        throw new IllegalArgumentException("maxStackDepth must not be negative");
+      }
+      if (stackCacheSize < 0) {
+        throw new IllegalArgumentException("stackCacheSize must not be negative");
+      }
+      if (maxStacksPerSecond < 0) {
+        throw new IllegalArgumentException("maxStacksPerSecond must not be negative");
+      }
+      return new FailureLogPolicy(this);
+    }
+  }
+
+  private FailureLogPolicy(Builder builder) {
+    this.commandErrorCodesOnly = builder.commandErrorCodesOnly;
+    this.maxStackDepth = builder.maxStackDepth;
+    this.stacks = builder.stackCacheSize > 0
+        ? new FingerprintCache<String>(builder.stackCacheSize) : null;
+    this.maxStacksPerSecond = builder.maxStacksPerSecond;
+  }
+
+  /**
+   * Fields of the error log of a failed command
+   */
+  public Map<String, Object> errorLogs(Throwable throwable) {
+    Map<String, Object> errorLogs = new HashMap<>(8);
+    errorLogs.put("event", Tags.ERROR.getKey());
+    errorLogs.put("error.kind", throwable.getClass().getName());
+    errorLogs.put("error.object", throwable);
+
+    errorLogs.put("message", throwable.getMessage());
+
+    if (commandErrorCodesOnly && throwable instanceof MongoCommandException) {
+      MongoCommandException commandException = (MongoCommandException) throwable;
+      errorLogs.put(ERROR_CODE, commandException.getErrorCode());
+      errorLogs.put(ERROR_CODE_NAME, commandException.getErrorCodeName());
+      return errorLogs;
+    }
+
+    String stack = stack(throwable);
+    if (stack != null) {
+      errorLogs.put("stack", stack);
+    }
+    return errorLogs;
+  }
+
+  private String stack(Throwable throwable) {
+    if (stacks == null) {
+      return tryAcquireStack() ? render(throwable) : null;
+    }
+    long fingerprint = fingerprint(throwable);
+    String stack = stacks.get(fingerprint);
+    if (stack == null && tryAcquireStack()) {
+      stack = render(throwable);
+      stacks.put(fingerprint, stack);
+    }
+    return stack;
+  }
+
+  private boolean tryAcquireStack() {
+    if (maxStacksPerSecond == UNLIMITED) {
+      return true;
+    }
+    long now = System.nanoTime();
+    long windowStart = windowStartNanos.get();
+    if (now - windowStart >= WINDOW_NANOS && windowStartNanos.compareAndSet(windowStart, now)) {
+      stacksInWindow.set(0);
+    }
+    return stacksInWindow.incrementAndGet() <= maxStacksPerSecond;
+  }
+
+  private String render(Throwable throwable) {
+    StringWriter sw = new StringWriter();
+    PrintWriter writer = new PrintWriter(sw);
+    if (maxStackDepth == UNLIMITED) {
+      throwable.printStackTrace(writer);
+      return sw.toString();
+    }
+    Set<Throwable> rendered = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+    for (Throwable current = throwable; current != null && rendered.add(current);
+        current = current.getCause()) {
+      if (current != throwable) {
+        writer.print("Caused by: ");
+      }
+      writer.println(current);
+      StackTraceElement[] frames = current.getStackTrace();
+      int depth = Math.min(frames.length, maxStackDepth);
+      for (int i = 0; i < depth; i++) {
+        writer.print("\tat ");
+        writer.println(frames[i]);
+      }
+      if (depth < frames.length) {
+        writer.print("\t... ");
+        writer.print(frames.length - depth);
+        writer.println(" more");
+      }
+    }
+    writer.flush();
+    return sw.toString();
+  }
+
+  /**
+   * Fingerprint of the messages and frames of the cause chain
+   */
+  private static long fingerprint(Throwable throwable) {
+    long hash = Fingerprints.OFFSET_BASIS;
+    Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+    for (Throwable current = throwable; current != null && seen.add(current);
+        current = current.getCause()) {
+      hash = Fingerprints.mix(hash, current.getClass().getName().hashCode());
+      String message = current.getMessage();
+      hash = Fingerprints.mix(hash, message == null ? 0 : message.hashCode());
+      for (StackTraceElement frame : current.getStackTrace()) {
+        hash = Fingerprints.mix(hash, frame.hashCode());
+      }
+    }
+    return hash;
+  }
+}
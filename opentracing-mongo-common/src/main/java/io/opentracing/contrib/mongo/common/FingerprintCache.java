@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded cache of values by fingerprint. Lookups are lock-free and only mark the entry as
+ * referenced; inserts are serialized and evict with the clock algorithm, skipping entries
+ * referenced since the hand last passed them.
+ */
+final class FingerprintCache<V> {
+  private final ConcurrentMap<Long, Entry<V>> entries;
+  // guarded by this
+  private final Entry<V>[] clock;
+  private int size;
+  private int hand;
+
+  FingerprintCache(int maxSize) {
+    this.entries = new ConcurrentHashMap<>(Math.min(maxSize, 1024) * 2);
+    @SuppressWarnings("unchecked")
+    Entry<V>[] clock = (Entry<V>[]) new Entry<?>[maxSize];
+    this.clock = clock;
+  }
+
+  V get(long fingerprint) {
+    Entry<V> entry = entries.get(fingerprint);
+    if (entry == null) {
+      return null;
+    }
+    if (!entry.referenced) {
+      entry.referenced = true;
+    }
+    return entry.value;
+  }
+
+  synchronized void put(long fingerprint, V value) {
+    if (entries.containsKey(fingerprint)) {
+      return;
+    }
+    Entry<V> entry = new Entry<>(fingerprint, value);
+    if (size < clock.length) {
+      clock[size++] = entry;
+    } else {
+      while (clock[hand].referenced) {
+        clock[hand].referenced = false;
+        hand = (hand + 1) % clock.length;
+      }
+      entries.remove(clock[hand].fingerprint);
+      clock[hand] = entry;
+      hand = (hand + 1) % clock.length;
+    }
+    entries.put(fingerprint, entry);
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  private static final class Entry<V> {
+    private final long fingerprint;
+    private final V value;
+    private volatile boolean referenced;
+
+    private Entry(long fingerprint, V value) {
+      this.fingerprint = fingerprint;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+/**
+ * Mixing of the structural fingerprints of statements and stack traces. Each 64-bit word, or each
+ * character of a string, is XORed into the hash which is then multiplied by the 64-bit FNV prime.
+ * This is not byte-wise FNV-1a: fingerprints are only compared within the process, so a word at a
+ * time is enough and cheaper.
+ */
+final class Fingerprints {
+  static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+
+  private static final long PRIME = 0x100000001b3L;
+
+  private Fingerprints() {
+  }
+
+  static long mix(long hash, long value) {
+    return (hash ^ value) * PRIME;
+  }
+
+  static long mix(long hash, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      hash = mix(hash, value.charAt(i));
+    }
+    return mix(hash, value.length());
+  }
+}
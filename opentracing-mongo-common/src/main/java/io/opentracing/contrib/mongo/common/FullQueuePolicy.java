@@ -0,0 +1,29 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+/**
+ * What {@link TracingCommandListener} does with a span whose finish queue is full in asynchronous
+ * finishing mode
+ */
+public enum FullQueuePolicy {
+  /**
+   * Drop the span without finishing it and count it as dropped
+   */
+  DROP,
+  /**
+   * Run the decorators and finish the span on the driver thread, as without asynchronous finishing
+   */
+  FINISH_INLINE
+}
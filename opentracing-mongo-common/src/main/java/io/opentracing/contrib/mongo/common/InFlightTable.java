@@ -0,0 +1,252 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Lock-free table of in-flight values keyed by request id.
+ *
+ * <p>Request ids are generated sequentially by the driver, so a slot is picked by the request id
+ * modulo the capacity, probing a few neighbouring slots on collision. Slots are claimed and
+ * released with a CAS on their state, so no allocation happens in steady state. Values which find
+ * no free slot, because more commands are in flight than the table can hold, go to an overflow
+ * map.
+ *
+ * <p>Each value carries its start time and owner, the connection it was sent on, so abandoned
+ * values can be evicted, and optionally the timestamp its span was started with.
+ */
+final class InFlightTable<V> {
+  static final int DEFAULT_CAPACITY = 4096;
+  private static final int MAX_PROBES = 8;
+
+  private static final int FREE = 0;
+  private static final int BUSY = 1;
+  private static final int FULL = 2;
+
+  private final int mask;
+  /**
+   * Slot states, written with volatile semantics to publish keys and values
+   */
+  private final AtomicIntegerArray states;
+  private final int[] keys;
+  private final Object[] values;
+  private final long[] startNanos;
+  private final long[] startMicros;
+  private final Object[] owners;
+  private final ConcurrentMap<Integer, Entry<V>> overflow = new ConcurrentHashMap<>();
+  /**
+   * Upper bound of the overflow entries, raised before an insert and lowered after a removal.
+   * {@link ConcurrentMap#isEmpty()} is only an estimate while the map is modified concurrently.
+   */
+  private final AtomicInteger overflowSize = new AtomicInteger();
+  private final AtomicInteger size = new AtomicInteger();
+
+  /**
+   * Decides which values {@link #evictIf(EntryFilter, Evictor)} removes
+   */
+  interface EntryFilter {
+    boolean shouldEvict(long startNanos, Object owner);
+  }
+
+  /**
+   * Receives the values removed by {@link #evictIf(EntryFilter, Evictor)}
+   */
+  interface Evictor<V> {
+    void evicted(V value);
+  }
+
+  InFlightTable() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  InFlightTable(int capacity) {
+    if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("capacity must be a power of two");
+    }
+    this.mask = capacity - 1;
+    this.states = new AtomicIntegerArray(capacity);
+    this.keys = new int[capacity];
+    this.values = new Object[capacity];
+    this.startNanos = new long[capacity];
+    this.startMicros = new long[capacity];
+    this.owners = new Object[capacity];
+  }
+
+  void put(int key, V value, long startNanos, Object owner) {
+    put(key, value, startNanos, 0, owner);
+  }
+
+  void put(int key, V value, long startNanos, long startMicros, Object owner) {
+    size.incrementAndGet();
+    for (int probe = 0; probe < MAX_PROBES; probe++) {
+      int index = (key + probe) & mask;
+      if (states.get(index) == FREE && states.compareAndSet(index, FREE, BUSY)) {
+        keys[index] = key;
+        values[index] = value;
+        this.startNanos[index] = startNanos;
+        this.startMicros[index] = startMicros;
+        owners[index] = owner;
+        states.set(index, FULL);
+        return;
+      }
+    }
+    overflowSize.incrementAndGet();
+    overflow.put(key, new Entry<>(value, startNanos, startMicros, owner));
+  }
+
+  V remove(int key) {
+    for (int probe = 0; probe < MAX_PROBES; probe++) {
+      int index = (key + probe) & mask;
+      for (;;) {
+        int state = states.get(index);
+        if (state == BUSY) {
+          // locked briefly by a put or an eviction, which may leave our key in place
+          Thread.yield();
+          continue;
+        }
+        if (state != FULL || keys[index] != key) {
+          break;
+        }
+        if (states.compareAndSet(index, FULL, BUSY)) {
+          // the slot may have been released and reused between the checks above
+          if (keys[index] == key) {
+            return release(index);
+          }
+          states.set(index, FULL);
+          break;
+        }
+      }
+    }
+    if (overflowSize.get() == 0) {
+      return null;
+    }
+    Entry<V> entry = overflow.remove(key);
+    if (entry == null) {
+      return null;
+    }
+    overflowSize.decrementAndGet();
+    size.decrementAndGet();
+    return entry.value;
+  }
+
+  /**
+   * Start time of the value with the given key, or {@code defaultNanos} if there is none. Only
+   * meaningful when read by the thread which removes the value afterwards, as the value may be
+   * removed concurrently.
+   */
+  long startNanos(int key, long defaultNanos) {
+    for (int probe = 0; probe < MAX_PROBES; probe++) {
+      int index = (key + probe) & mask;
+      if (states.get(index) == FULL && keys[index] == key) {
+        return startNanos[index];
+      }
+    }
+    if (overflowSize.get() == 0) {
+      return defaultNanos;
+    }
+    Entry<V> entry = overflow.get(key);
+    return entry == null ? defaultNanos : entry.startNanos;
+  }
+
+  /**
+   * Start timestamp of the value with the given key, or {@code defaultMicros} if there is none,
+   * read like {@link #startNanos(int, long)}
+   */
+  long startMicros(int key, long defaultMicros) {
+    for (int probe = 0; probe < MAX_PROBES; probe++) {
+      int index = (key + probe) & mask;
+      if (states.get(index) == FULL && keys[index] == key) {
+        return startMicros[index];
+      }
+    }
+    if (overflowSize.get() == 0) {
+      return defaultMicros;
+    }
+    Entry<V> entry = overflow.get(key);
+    return entry == null ? defaultMicros : entry.startMicros;
+  }
+
+  /**
+   * Removes all values accepted by the filter. Slots are only locked once a value is known to be
+   * evicted; a slot reused by another value meanwhile is unlocked again, and concurrent removes
+   * wait for such slots rather than skip them.
+   */
+  void evictIf(EntryFilter filter, Evictor<? super V> evictor) {
+    for (int index = 0; index <= mask; index++) {
+      if (states.get(index) != FULL) {
+        continue;
+      }
+      int key = keys[index];
+      if (filter.shouldEvict(startNanos[index], owners[index])
+          && states.compareAndSet(index, FULL, BUSY)) {
+        if (keys[index] == key) {
+          evictor.evicted(release(index));
+        } else {
+          states.set(index, FULL);
+        }
+      }
+    }
+    if (overflowSize.get() == 0) {
+      return;
+    }
+    for (Map.Entry<Integer, Entry<V>> entry : overflow.entrySet()) {
+      Entry<V> value = entry.getValue();
+      if (filter.shouldEvict(value.startNanos, value.owner)
+          && overflow.remove(entry.getKey(), value)) {
+        overflowSize.decrementAndGet();
+        size.decrementAndGet();
+        evictor.evicted(value.value);
+      }
+    }
+  }
+
+  /**
+   * Number of values in the table
+   */
+  int size() {
+    return size.get();
+  }
+
+  /**
+   * Releases a slot locked by the calling thread
+   */
+  private V release(int index) {
+    @SuppressWarnings("unchecked")
+    V value = (V) values[index];
+    values[index] = null;
+    owners[index] = null;
+    states.set(index, FREE);
+    size.decrementAndGet();
+    return value;
+  }
+
+  private static final class Entry<V> {
+    private final V value;
+    private final long startNanos;
+    private final long startMicros;
+    private final Object owner;
+
+    private Entry(V value, long startNanos, long startMicros, Object owner) {
+      this.value = value;
+      this.startNanos = startNanos;
+      this.startMicros = startMicros;
+      this.owner = owner;
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.opentracing.contrib.mongo.common.metrics.CommandMetrics;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records latency histograms and failure counts per database, collection, command name and server
+ * without creating spans, so they don't depend on trace sampling. May be registered alongside a
+ * {@link TracingCommandListener}.
+ *
+ * <p>The number of series is capped; commands of series beyond the cap are recorded in a single
+ * overflow series whose dimensions are all {@code null}.
+ */
+public class MetricsCommandListener implements CommandListener {
+  public static final int DEFAULT_MAX_SERIES = 1000;
+  public static final int DEFAULT_MAX_IN_FLIGHT_COMMANDS = 100_000;
+
+  private static final long COMMAND_TTL_NANOS = TimeUnit.MILLISECONDS
+      .toNanos(TracingCommandListener.DEFAULT_SPAN_TTL_MILLIS);
+  private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private static final ThreadLocal<CommandKey> LOOKUP_KEY = new ThreadLocal<CommandKey>() {
+    @Override
+    protected CommandKey initialValue() {
+      return new CommandKey();
+    }
+  };
+
+  private final ExcludedCommandMatcher excludedCommands;
+  private final int maxSeries;
+  private final int maxInFlightCommands;
+  private final ConcurrentMap<CommandKey, CommandMetrics> series = new ConcurrentHashMap<>();
+  private final AtomicInteger seriesCount = new AtomicInteger();
+  private final CommandMetrics overflow = new CommandMetrics(null, null, null, null);
+  private volatile boolean overflowUsed;
+  /**
+   * Series of the commands in flight by request id
+   */
+  private final InFlightTable<CommandMetrics> inFlight = new InFlightTable<>();
+  private final AtomicLong nextSweepNanos = new AtomicLong(System.nanoTime()
+      + SWEEP_INTERVAL_NANOS);
+
+  public static class Builder {
+    private List<ExcludedCommand> excludedCommands = Collections.emptyList();
+    private int maxSeries = DEFAULT_MAX_SERIES;
+    private int maxInFlightCommands = DEFAULT_MAX_IN_FLIGHT_COMMANDS;
+
+    public Builder withExcludedCommands(List<ExcludedCommand> excludedCommands) {
+      this.excludedCommands = excludedCommands;
+      return this;
+    }
+
+    /**
+     * Maximum number of series, not counting the overflow series. By default,
+     * {@link #DEFAULT_MAX_SERIES}.
+     */
+    public Builder withMaxSeries(int maxSeries) {
+      this.maxSeries = maxSeries;
+      return this;
+    }
+
+    /**
+     * Maximum number of commands in flight. Commands started beyond are not recorded. By default,
+     * {@link #DEFAULT_MAX_IN_FLIGHT_COMMANDS}.
+     */
+    public Builder withMaxInFlightCommands(int maxInFlightCommands) {
+      this.maxInFlightCommands = maxInFlightCommands;
+      return this;
+    }
+
+    public MetricsCommandListener build() {
+      if (maxSeries < 0) {
+        throw new IllegalArgumentException("maxSeries must not be negative");
+      }
+      if (maxInFlightCommands <= 0) {
+        throw new IllegalArgumentException("maxInFlightCommands must be positive");
+      }
+      return new MetricsCommandListener(this);
+    }
+  }
+
+  public MetricsCommandListener() {
+    this(new Builder());
+  }
+
+  private MetricsCommandListener(Builder builder) {
+    this.excludedCommands = new ExcludedCommandMatcher(builder.excludedCommands);
+    this.maxSeries = builder.maxSeries;
+    this.maxInFlightCommands = builder.maxInFlightCommands;
+  }
+
+  @Override
+  public void commandStarted(CommandStartedEvent event) {
+    long now = System.nanoTime();
+    sweepExpired(now);
+    if (inFlight.size() >= maxInFlightCommands || excludedCommands.isExcluded(event)) {
+      return;
+    }
+    inFlight.put(event.getRequestId(), metrics(event), now, null);
+  }
+
+  @Override
+  public void commandSucceeded(CommandSucceededEvent event) {
+    CommandMetrics metrics = inFlight.remove(event.getRequestId());
+    if (metrics != null) {
+      metrics.commandSucceeded(event.getElapsedTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+    }
+  }
+
+  @Override
+  public void commandFailed(CommandFailedEvent event) {
+    CommandMetrics metrics = inFlight.remove(event.getRequestId());
+    if (metrics != null) {
+      metrics.commandFailed(event.getElapsedTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * All series recorded so far, including the overflow series once used
+   */
+  public Collection<CommandMetrics> getMetrics() {
+    List<CommandMetrics> result = new ArrayList<>(series.values());
+    if (overflowUsed) {
+      result.add(overflow);
+    }
+    return result;
+  }
+
+  private CommandMetrics metrics(CommandStartedEvent event) {
+    CommandKey key = LOOKUP_KEY.get().set(event.getDatabaseName(),
+        CommandNames.collection(event.getCommand(), event.getCommandName()),
+        event.getCommandName(),
+        event.getConnectionDescription().getServerAddress());
+    CommandMetrics metrics = series.get(key);
+    if (metrics != null) {
+      return metrics;
+    }
+    if (seriesCount.get() >= maxSeries) {
+      return overflow();
+    }
+    if (seriesCount.incrementAndGet() > maxSeries) {
+      // lost the race for the last series
+      seriesCount.decrementAndGet();
+      return overflow();
+    }
+    key = key.copy();
+    metrics = new CommandMetrics(key.getDatabase(), key.getCollection(), key.getCommandName(),
+        key.getServer() == null ? null : key.getServer().toString());
+    CommandMetrics existing = series.putIfAbsent(key, metrics);
+    if (existing != null) {
+      seriesCount.decrementAndGet();
+      return existing;
+    }
+    return metrics;
+  }
+
+  private CommandMetrics overflow() {
+    if (!overflowUsed) {
+      overflowUsed = true;
+    }
+    return overflow;
+  }
+
+  private void sweepExpired(final long now) {
+    long nextSweep = nextSweepNanos.get();
+    if (now - nextSweep < 0
+        || !nextSweepNanos.compareAndSet(nextSweep, now + SWEEP_INTERVAL_NANOS)) {
+      return;
+    }
+    inFlight.evictIf(new InFlightTable.EntryFilter() {
+      @Override
+      public boolean shouldEvict(long startNanos, Object owner) {
+        return now - startNanos >= COMMAND_TTL_NANOS;
+      }
+    }, new InFlightTable.Evictor<CommandMetrics>() {
+      @Override
+      public void evicted(CommandMetrics metrics) {
+      }
+    });
+  }
+}
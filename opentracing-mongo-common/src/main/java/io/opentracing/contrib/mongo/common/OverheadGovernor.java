@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Degrades the {@link TracingLevel} of a listener one step per window while the time it spends on
+ * the driver threads exceeds a CPU budget, and restores it one step per window once the time
+ * falls below half of the budget.
+ *
+ * <p>Only the events of one in {@value #TIMED_RATE} requests, picked by request id, are timed and
+ * scaled up, so untimed events cost a mask of their request id.
+ */
+final class OverheadGovernor {
+  static final int TIMED_RATE = 16;
+  static final int SAMPLING_RATE = 16;
+  static final double RESTORE_RATIO = 0.5;
+
+  private static final int TIMED_SHIFT = Integer.numberOfTrailingZeros(TIMED_RATE);
+  private static final int TIMED_MASK = TIMED_RATE - 1;
+  private static final int SAMPLING_MASK = SAMPLING_RATE - 1;
+  private static final TracingLevel[] LEVELS = TracingLevel.values();
+
+  private final double budget;
+  private final long windowNanos;
+  private final AtomicLong spentNanos = new AtomicLong();
+  private final AtomicLong nextWindowNanos;
+  private volatile long windowStartNanos;
+  private volatile TracingLevel level = TracingLevel.FULL;
+  private volatile double overhead;
+
+  /**
+   * @param budget fraction of one CPU the listener may spend
+   */
+  OverheadGovernor(double budget, long windowNanos, long now) {
+    this.budget = budget;
+    this.windowNanos = windowNanos;
+    this.windowStartNanos = now;
+    this.nextWindowNanos = new AtomicLong(now + windowNanos);
+  }
+
+  static boolean isTimed(int requestId) {
+    return (requestId & TIMED_MASK) == 0;
+  }
+
+  /**
+   * @return whether the command is traced at the {@link TracingLevel#SAMPLED} level, independently
+   * of it being timed
+   */
+  static boolean isSampled(int requestId) {
+    return ((requestId >>> TIMED_SHIFT) & SAMPLING_MASK) == 0;
+  }
+
+  TracingLevel level() {
+    return level;
+  }
+
+  double overhead() {
+    return overhead;
+  }
+
+  /**
+   * Records the time spent on a timed event, adjusting the level if the window is over
+   */
+  void record(long startNanos, long endNanos) {
+    spentNanos.addAndGet((endNanos - startNanos) << TIMED_SHIFT);
+    long next = nextWindowNanos.get();
+    if (endNanos - next >= 0 && nextWindowNanos.compareAndSet(next, endNanos + windowNanos)) {
+      adjust(endNanos);
+    }
+  }
+
+  private void adjust(long now) {
+    long elapsedNanos = Math.max(1, now - windowStartNanos);
+    windowStartNanos = now;
+    double measured = (double) spentNanos.getAndSet(0) / elapsedNanos;
+    overhead = measured;
+    int ordinal = level.ordinal();
+    if (measured > budget && ordinal < LEVELS.length - 1) {
+      level = LEVELS[ordinal + 1];
+    } else if (measured < budget * RESTORE_RATIO && ordinal > 0) {
+      level = LEVELS[ordinal - 1];
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import com.mongodb.ServerAddress;
+import io.opentracing.Span;
+import io.opentracing.tag.Tags;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Peer tags of a server, resolved once per {@link ServerAddress} and cached until the server
+ * changes, see {@link TracingClusterListener}. A full cache is cleared, dropping the addresses no
+ * longer in use while the current ones are cached again by their next span.
+ */
+final class PeerTags {
+  static final int MAX_CACHED_ADDRESSES = 1024;
+
+  private static final ConcurrentMap<ServerAddress, PeerTags> CACHE = new ConcurrentHashMap<>();
+
+  private final String host;
+  private final Integer ipv4;
+  private final String ipv6;
+  private final Integer port;
+
+  private PeerTags(ServerAddress address) {
+    this.host = address.getHost();
+    InetAddress inetAddress = address.getSocketAddress().getAddress();
+    if (inetAddress instanceof Inet4Address) {
+      this.ipv4 = ByteBuffer.wrap(inetAddress.getAddress()).getInt();
+      this.ipv6 = null;
+    } else {
+      this.ipv4 = null;
+      this.ipv6 = inetAddress.getHostAddress();
+    }
+    this.port = address.getPort();
+  }
+
+  static PeerTags of(ServerAddress address) {
+    PeerTags peerTags = CACHE.get(address);
+    if (peerTags == null) {
+      peerTags = new PeerTags(address);
+      if (CACHE.size() >= MAX_CACHED_ADDRESSES) {
+        CACHE.clear();
+      }
+      CACHE.put(address, peerTags);
+    }
+    return peerTags;
+  }
+
+  /**
+   * Resolves the address again for the next span
+   */
+  static void invalidate(ServerAddress address) {
+    CACHE.remove(address);
+  }
+
+  static int cacheSize() {
+    return CACHE.size();
+  }
+
+  void apply(Span span) {
+    Tags.PEER_HOSTNAME.set(span, host);
+    if (ipv4 != null) {
+      Tags.PEER_HOST_IPV4.set(span, ipv4);
+    } else {
+      Tags.PEER_HOST_IPV6.set(span, ipv6);
+    }
+    Tags.PEER_PORT.set(span, port);
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.opentracing.Span;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.RawBsonDocument;
+
+/**
+ * Tags spans with selected fields of the reply of their command.
+ *
+ * <p>The reply is scanned once, reading the names of its top-level keys and descending only into
+ * the documents holding a selected field. Other values, including the documents of a batch, are
+ * skipped by their length without being decoded. Replies of the driver are raw documents, which
+ * are scanned in place.
+ */
+public final class ReplySpanDecorator implements SpanDecorator {
+  static final String OK_TAG = "reply.ok";
+  static final String N_RETURNED_TAG = "reply.n_returned";
+  static final String CURSOR_OPEN_TAG = "reply.cursor_open";
+  static final String WRITE_CONCERN_ERROR_TAG = "reply.write_concern_error";
+  static final String CLUSTER_TIME_TAG = "reply.cluster_time";
+
+  private static final String OK = "ok";
+  private static final String CURSOR = "cursor";
+  private static final String ID = "id";
+  private static final String FIRST_BATCH = "firstBatch";
+  private static final String NEXT_BATCH = "nextBatch";
+  private static final String WRITE_CONCERN_ERROR = "writeConcernError";
+  private static final String CODE = "code";
+  private static final String CLUSTER_TIME_DOCUMENT = "$clusterTime";
+  private static final String CLUSTER_TIME = "clusterTime";
+
+  public enum Field {
+    /**
+     * {@code ok} of the reply
+     */
+    OK,
+    /**
+     * Number of documents in the first or next batch of a cursor
+     */
+    N_RETURNED,
+    /**
+     * Whether a cursor was left open on the server, i.e. its id is not 0
+     */
+    CURSOR_OPEN,
+    /**
+     * Code of the write concern error
+     */
+    WRITE_CONCERN_ERROR,
+    /**
+     * Cluster time of the reply, as the value of its BSON timestamp
+     */
+    CLUSTER_TIME
+  }
+
+  private final boolean ok;
+  private final boolean nReturned;
+  private final boolean cursorOpen;
+  private final boolean writeConcernError;
+  private final boolean clusterTime;
+
+  public ReplySpanDecorator(Field... fields) {
+    Set<Field> selected = fields.length == 0 ? EnumSet.noneOf(Field.class)
+        : EnumSet.copyOf(Arrays.asList(fields));
+    this.ok = selected.contains(Field.OK);
+    this.nReturned = selected.contains(Field.N_RETURNED);
+    this.cursorOpen = selected.contains(Field.CURSOR_OPEN);
+    this.writeConcernError = selected.contains(Field.WRITE_CONCERN_ERROR);
+    this.clusterTime = selected.contains(Field.CLUSTER_TIME);
+  }
+
+  @Override
+  public void commandStarted(CommandStartedEvent event, Span span) {
+  }
+
+  @Override
+  public void commandSucceeded(CommandSucceededEvent event, Span span) {
+    BsonDocument reply = event.getResponse();
+    if (reply == null) {
+      return;
+    }
+    BsonReader reader = reply instanceof RawBsonDocument
+        ? new BsonBinaryReader(((RawBsonDocument) reply).getByteBuffer().asNIO())
+        : new BsonDocumentReader(reply);
+    try {
+      scan(reader, span);
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Override
+  public void commandFailed(CommandFailedEvent event, Span span) {
+  }
+
+  private void scan(BsonReader reader, Span span) {
+    reader.readStartDocument();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      String name = reader.readName();
+      if (ok && OK.equals(name)) {
+        Number value = readNumber(reader);
+        if (value != null) {
+          span.setTag(OK_TAG, value);
+        }
+      } else if ((nReturned || cursorOpen) && CURSOR.equals(name)
+          && reader.getCurrentBsonType() == BsonType.DOCUMENT) {
+        scanCursor(reader, span);
+      } else if (writeConcernError && WRITE_CONCERN_ERROR.equals(name)
+          && reader.getCurrentBsonType() == BsonType.DOCUMENT) {
+        Number code = readField(reader, CODE);
+        if (code != null) {
+          span.setTag(WRITE_CONCERN_ERROR_TAG, code.intValue());
+        }
+      } else if (clusterTime && CLUSTER_TIME_DOCUMENT.equals(name)
+          && reader.getCurrentBsonType() == BsonType.DOCUMENT) {
+        Number time = readField(reader, CLUSTER_TIME);
+        if (time != null) {
+          span.setTag(CLUSTER_TIME_TAG, time);
+        }
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.readEndDocument();
+  }
+
+  private void scanCursor(BsonReader reader, Span span) {
+    reader.readStartDocument();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      String name = reader.readName();
+      if (cursorOpen && ID.equals(name)) {
+        Number id = readNumber(reader);
+        if (id != null) {
+          span.setTag(CURSOR_OPEN_TAG, id.longValue() != 0);
+        }
+      } else if (nReturned && (FIRST_BATCH.equals(name) || NEXT_BATCH.equals(name))
+          && reader.getCurrentBsonType() == BsonType.ARRAY) {
+        span.setTag(N_RETURNED_TAG, countElements(reader));
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.readEndDocument();
+  }
+
+  private static int countElements(BsonReader reader) {
+    int count = 0;
+    reader.readStartArray();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      reader.skipValue();
+      count++;
+    }
+    reader.readEndArray();
+    return count;
+  }
+
+  /**
+   * Reads a number or timestamp field of the current document, skipping the others
+   */
+  private static Number readField(BsonReader reader, String fieldName) {
+    Number result = null;
+    reader.readStartDocument();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      String name = reader.readName();
+      if (result == null && fieldName.equals(name)) {
+        result = readNumber(reader);
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.readEndDocument();
+    return result;
+  }
+
+  /**
+   * Reads the current value if it is a number or timestamp, otherwise skips it
+   */
+  private static Number readNumber(BsonReader reader) {
+    switch (reader.getCurrentBsonType()) {
+      case DOUBLE:
+        return reader.readDouble();
+      case INT32:
+        return reader.readInt32();
+      case INT64:
+        return reader.readInt64();
+      case TIMESTAMP:
+        return reader.readTimestamp().getValue();
+      default:
+        reader.skipValue();
+        return null;
+    }
+  }
+}
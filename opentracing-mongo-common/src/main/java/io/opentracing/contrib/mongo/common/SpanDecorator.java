@@ -13,25 +13,27 @@
  */
 package io.opentracing.contrib.mongo.common;
 
-import static io.opentracing.contrib.mongo.common.TracingCommandListener.COMPONENT_NAME;
-
 import com.mongodb.event.CommandFailedEvent;
 import com.mongodb.event.CommandStartedEvent;
 import com.mongodb.event.CommandSucceededEvent;
 import io.opentracing.Span;
-import io.opentracing.tag.Tags;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.net.Inet4Address;
-import java.net.InetAddress;
-import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
 
 public interface SpanDecorator {
 
   SpanDecorator DEFAULT = new DefaultSpanDecorator();
 
+  /**
+   * Summarizes the payload and reply of {@code insert}, {@code update} and {@code delete} commands
+   * without decoding their documents. Add it next to {@link #DEFAULT}.
+   */
+  SpanDecorator BULK_WRITE = new BulkWriteSpanDecorator();
+
+  /**
+   * Tags every field supported by {@link ReplySpanDecorator} from the reply, scanning it without
+   * decoding nested documents. Add it next to {@link #DEFAULT}.
+   */
+  SpanDecorator REPLY = new ReplySpanDecorator(ReplySpanDecorator.Field.values());
+
   void commandStarted(CommandStartedEvent event, Span span);
 
   void commandSucceeded(CommandSucceededEvent event, Span span);
@@ -39,54 +41,3 @@ public interface SpanDecorator {
   void commandFailed(CommandFailedEvent event, Span span);
 
 }
-
-final class DefaultSpanDecorator implements SpanDecorator {
-
-  @Override
-  public void commandStarted(CommandStartedEvent event, Span span) {
-    Tags.COMPONENT.set(span, COMPONENT_NAME);
-    Tags.DB_STATEMENT.set(span, event.getCommand().toString());
-    Tags.DB_INSTANCE.set(span, event.getDatabaseName());
-
-    Tags.PEER_HOSTNAME.set(span, event.getConnectionDescription().getServerAddress().getHost());
-
-    InetAddress inetAddress = event.getConnectionDescription().getServerAddress().getSocketAddress()
-        .getAddress();
-
-    if (inetAddress instanceof Inet4Address) {
-      byte[] address = inetAddress.getAddress();
-      Tags.PEER_HOST_IPV4.set(span, ByteBuffer.wrap(address).getInt());
-    } else {
-      Tags.PEER_HOST_IPV6.set(span, inetAddress.getHostAddress());
-    }
-
-    Tags.PEER_PORT.set(span, event.getConnectionDescription().getServerAddress().getPort());
-    Tags.DB_TYPE.set(span, "mongo");
-  }
-
-  @Override
-  public void commandSucceeded(CommandSucceededEvent event, Span span) {
-  }
-
-  @Override
-  public void commandFailed(CommandFailedEvent event, Span span) {
-    Tags.ERROR.set(span, Boolean.TRUE);
-    span.log(errorLogs(event.getThrowable()));
-  }
-
-  private static Map<String, Object> errorLogs(Throwable throwable) {
-    Map<String, Object> errorLogs = new HashMap<>(4);
-    errorLogs.put("event", Tags.ERROR.getKey());
-    errorLogs.put("error.kind", throwable.getClass().getName());
-    errorLogs.put("error.object", throwable);
-
-    errorLogs.put("message", throwable.getMessage());
-
-    StringWriter sw = new StringWriter();
-    throwable.printStackTrace(new PrintWriter(sw));
-    errorLogs.put("stack", sw.toString());
-
-    return errorLogs;
-  }
-}
-
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Carries the caller's span from the submission of an operation to the driver's callbacks.
+ *
+ * <p>Driver objects, e.g. databases, collections and iterables, are wrapped so that callbacks
+ * passed to them carry the span active when an operation is submitted, and activate it when the
+ * driver calls them, without looking up the active span of the calling thread. The driver starts
+ * the commands of the operation during the submitting call whenever a server and a pooled
+ * connection are available, so these are parented on the submission span as it is. Objects
+ * returned by wrapped objects are wrapped as well. Only callbacks carry a span: a database,
+ * collection or publisher propagates the span active when it is called, not the one active when it
+ * was obtained.
+ *
+ * <p>Proxy classes are created once per interface and the parameter types of each method are
+ * looked up once, so a call costs one reflective invocation of the delegate.
+ */
+public final class SpanPropagation {
+
+  private final Tracer tracer;
+  private final Set<Class<?>> callbackTypes;
+  private final List<String> wrappedPackages;
+  private final CallbackDecorator callbackDecorator;
+  private final ConcurrentMap<Class<?>, Constructor<?>> proxyConstructors =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<Method, MethodInfo> methods = new ConcurrentHashMap<>();
+
+  /**
+   * Replaces callbacks passed to wrapped driver objects, e.g. to trace the lifetime of a cursor
+   */
+  public interface CallbackDecorator {
+    /**
+     * @param type interface of the wrapped driver object the callback is passed to
+     * @param span span active at submission, may be {@code null}
+     * @return the callback passed to the driver instead, which is responsible for activating a
+     * span when called, or the given callback to only activate the submission span
+     */
+    Object decorate(Class<?> type, Class<?> callbackType, Object callback, Span span);
+  }
+
+  /**
+   * @param callbackTypes interfaces of the callbacks the driver calls back, e.g. {@code
+   * SingleResultCallback}
+   * @param wrappedPackages packages of the driver interfaces to wrap, e.g. {@code
+   * com.mongodb.async.client}
+   */
+  public SpanPropagation(Tracer tracer, Collection<Class<?>> callbackTypes,
+      Collection<String> wrappedPackages) {
+    this(tracer, callbackTypes, wrappedPackages, null);
+  }
+
+  public SpanPropagation(Tracer tracer, Collection<Class<?>> callbackTypes,
+      Collection<String> wrappedPackages, CallbackDecorator callbackDecorator) {
+    this.tracer = tracer;
+    this.callbackTypes = new HashSet<>(callbackTypes);
+    this.wrappedPackages = new ArrayList<>(wrappedPackages);
+    this.callbackDecorator = callbackDecorator;
+  }
+
+  /**
+   * Wraps a driver object, propagating the span active when it is called to its callbacks
+   */
+  public <T> T wrap(Class<T> type, T delegate) {
+    return type.cast(wrap(type, delegate, null, false));
+  }
+
+  private Object wrap(Class<?> type, Object delegate, Span span, boolean callback) {
+    if (delegate == null || Proxy.isProxyClass(delegate.getClass())
+        && Proxy.getInvocationHandler(delegate) instanceof Handler) {
+      return delegate;
+    }
+    Handler handler = new Handler(type, delegate, span, callback);
+    Constructor<?> constructor = proxyConstructors.get(type);
+    if (constructor == null) {
+      Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+      try {
+        proxyConstructors.putIfAbsent(type,
+            proxy.getClass().getConstructor(InvocationHandler.class));
+      } catch (NoSuchMethodException e) {
+        throw new IllegalStateException(e);
+      }
+      return proxy;
+    }
+    try {
+      return constructor.newInstance(handler);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private MethodInfo methodInfo(Method method) {
+    MethodInfo info = methods.get(method);
+    if (info == null) {
+      info = new MethodInfo(method.getParameterTypes(), isWrapped(method.getReturnType()));
+      methods.putIfAbsent(method, info);
+    }
+    return info;
+  }
+
+  private boolean isWrapped(Class<?> type) {
+    if (!type.isInterface()) {
+      return false;
+    }
+    for (String wrappedPackage : wrappedPackages) {
+      if (type.getName().startsWith(wrappedPackage + ".")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private final class Handler implements InvocationHandler {
+    private final Class<?> type;
+    private final Object delegate;
+    /**
+     * Span active at submission for callbacks, {@code null} for other driver objects
+     */
+    private final Span span;
+    /**
+     * Callbacks are called on driver threads, so they only activate the span they carry
+     */
+    private final boolean callback;
+
+    private Handler(Class<?> type, Object delegate, Span span, boolean callback) {
+      this.type = type;
+      this.delegate = delegate;
+      this.span = span;
+      this.callback = callback;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+        return invoke(method, args);
+      }
+      MethodInfo info = methodInfo(method);
+      Span span = callback ? this.span : tracer.activeSpan();
+      if (args != null) {
+        Class<?>[] parameterTypes = info.parameterTypes;
+        for (int i = 0; i < args.length; i++) {
+          args[i] = wrapArgument(parameterTypes[i], args[i], span);
+        }
+      }
+      Object result;
+      if (!callback) {
+        result = invoke(method, args);
+      } else {
+        Scope scope = tracer.activateSpan(span);
+        try {
+          result = invoke(method, args);
+        } finally {
+          scope.close();
+        }
+      }
+      return info.wrapsResult
+          ? wrap(method.getReturnType(), result, null, false) : result;
+    }
+
+    private Object wrapArgument(Class<?> type, Object argument, Span span) {
+      if (argument != null && Proxy.isProxyClass(argument.getClass())) {
+        InvocationHandler handler = Proxy.getInvocationHandler(argument);
+        if (handler instanceof Handler) {
+          // the driver may rely on the implementation of its own objects, e.g. sessions
+          return ((Handler) handler).delegate;
+        }
+      }
+      if (argument == null || !callbackTypes.contains(type)) {
+        return argument;
+      }
+      if (callbackDecorator != null && !callback) {
+        Object decorated = callbackDecorator.decorate(this.type, type, argument, span);
+        if (decorated != argument) {
+          return decorated;
+        }
+      }
+      return span != null ? wrap(type, argument, span, true) : argument;
+    }
+
+    private Object invoke(Method method, Object[] args) throws Throwable {
+      try {
+        return method.invoke(delegate, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  private static final class MethodInfo {
+    private final Class<?>[] parameterTypes;
+    /**
+     * Whether the return type is a driver interface to wrap
+     */
+    private final boolean wrapsResult;
+
+    private MethodInfo(Class<?>[] parameterTypes, boolean wrapsResult) {
+      this.parameterTypes = parameterTypes;
+      this.wrapsResult = wrapsResult;
+    }
+  }
+}
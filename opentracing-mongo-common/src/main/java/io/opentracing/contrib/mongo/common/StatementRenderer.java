@@ -0,0 +1,577 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import static io.opentracing.contrib.mongo.common.Fingerprints.OFFSET_BASIS;
+import static io.opentracing.contrib.mongo.common.Fingerprints.mix;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.codecs.BsonValueCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.json.Converter;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriter;
+import org.bson.json.JsonWriterSettings;
+import org.bson.json.StrictJsonWriter;
+import org.bson.types.ObjectId;
+
+/**
+ * Renders commands as JSON for the {@code db.statement} tag.
+ *
+ * <p>Rendering stops as soon as the configured maximum length is reached, so large commands are
+ * never serialized in full. Bulk payload arrays can be replaced by their size. Buffers are reused
+ * per thread.
+ *
+ * <p>With obfuscated literals, every literal except the collection name and {@code $db} is
+ * replaced by {@code "?"}, producing the shape of the command. Shapes are cached by a structural
+ * fingerprint, so a repeated shape is returned as the same instance without rendering it again.
+ * Each cached shape keeps the structure it was rendered from, which is compared with the command
+ * on a hit, so colliding fingerprints never return the shape of another command.
+ */
+public class StatementRenderer {
+
+  /**
+   * Payload arrays of the {@code insert}, {@code update} and {@code delete} commands
+   */
+  public static final List<String> BULK_PAYLOADS = Collections.unmodifiableList(
+      Arrays.asList("documents", "updates", "deletes"));
+
+  public static final int UNLIMITED = 0;
+
+  static final String TRUNCATION_MARKER = "...";
+  static final String OMITTED_KEY = "$omitted";
+  static final String PLACEHOLDER = "?";
+  static final String DATABASE_KEY = "$db";
+
+  public static final int DEFAULT_SHAPE_CACHE_SIZE = 1024;
+
+  private static final long DOCUMENT_MARKER = 1;
+  private static final long ARRAY_MARKER = 2;
+  private static final long LITERAL_MARKER = 3;
+  private static final long END_MARKER = 4;
+
+  /**
+   * Tokens of the structure of a shape, besides the keys and kept literals
+   */
+  private enum Token {
+    DOCUMENT, ARRAY, LITERAL, END
+  }
+
+  public static final StatementRenderer DEFAULT = new Builder().build();
+
+  private static final JsonWriterSettings SETTINGS = JsonWriterSettings.builder()
+      .outputMode(JsonMode.RELAXED)
+      .objectIdConverter(new ObjectIdConverter())
+      .build();
+  private static final BsonValueCodec VALUE_CODEC = new BsonValueCodec();
+  private static final EncoderContext ENCODER_CONTEXT = EncoderContext.builder().build();
+
+  private static final ThreadLocal<StatementBuffer> BUFFERS = new ThreadLocal<StatementBuffer>() {
+    @Override
+    protected StatementBuffer initialValue() {
+      return new StatementBuffer();
+    }
+  };
+
+  private final int maxLength;
+  private final Set<String> omittedPayloads;
+  private final FingerprintCache<Shape> shapes;
+
+  public static class Builder {
+    private int maxLength = UNLIMITED;
+    private Set<String> omittedPayloads = Collections.emptySet();
+    private boolean obfuscateLiterals;
+    private int shapeCacheSize = DEFAULT_SHAPE_CACHE_SIZE;
+
+    /**
+     * Maximum number of characters rendered, {@link #UNLIMITED} by default. Truncated statements
+     * end with {@code "..."}.
+     */
+    public Builder withMaxLength(int maxLength) {
+      this.maxLength = maxLength;
+      return this;
+    }
+
+    /**
+     * Render the given top level arrays as {@code {"$omitted": <size>}} instead of their content.
+     */
+    public Builder withOmittedPayloads(Collection<String> omittedPayloads) {
+      this.omittedPayloads = new HashSet<>(omittedPayloads);
+      return this;
+    }
+
+    /**
+     * Omit the {@link #BULK_PAYLOADS} of write commands.
+     */
+    public Builder withBulkPayloadsOmitted() {
+      return withOmittedPayloads(BULK_PAYLOADS);
+    }
+
+    /**
+     * Replace literals by {@code "?"} to render the shape of commands instead of their values.
+     */
+    public Builder withObfuscatedLiterals() {
+      this.obfuscateLiterals = true;
+      return this;
+    }
+
+    /**
+     * Maximum number of shapes cached when literals are obfuscated, {@link
+     * #DEFAULT_SHAPE_CACHE_SIZE} by default. Shapes not used recently are evicted first.
+     */
+    public Builder withShapeCacheSize(int shapeCacheSize) {
+      this.shapeCacheSize = shapeCacheSize;
+      return this;
+    }
+
+    public StatementRenderer build() {
+      if (maxLength < 0) {
+        throw new IllegalArgumentException("maxLength must not be negative");
+      }
+      if (shapeCacheSize < 1) {
+        throw new IllegalArgumentException("shapeCacheSize must be positive");
+      }
+      return new StatementRenderer(maxLength, omittedPayloads,
+          obfuscateLiterals ? new FingerprintCache<Shape>(shapeCacheSize) : null);
+    }
+  }
+
+  StatementRenderer(int maxLength, Set<String> omittedPayloads, FingerprintCache<Shape> shapes) {
+    this.maxLength = maxLength;
+    this.omittedPayloads = omittedPayloads;
+    this.shapes = shapes;
+  }
+
+  public String render(BsonDocument command) {
+    if (shapes == null) {
+      return renderJson(command);
+    }
+    long fingerprint = commandFingerprint(command);
+    Shape shape = shapes.get(fingerprint);
+    if (shape != null && matchesCommand(command, shape.structure)) {
+      return shape.json;
+    }
+    String json = renderJson(command);
+    if (shape == null) {
+      List<Object> structure = new ArrayList<>();
+      collectCommand(command, structure);
+      shapes.put(fingerprint, new Shape(structure.toArray(), json));
+    }
+    return json;
+  }
+
+  private String renderJson(BsonDocument command) {
+    StatementBuffer buffer = BUFFERS.get();
+    buffer.reset(maxLength == UNLIMITED ? Integer.MAX_VALUE : maxLength);
+    try {
+      JsonWriter writer = new JsonWriter(buffer, SETTINGS);
+      if (shapes != null) {
+        writeCommandShape(writer, command);
+      } else {
+        write(writer, command);
+      }
+    } catch (LimitReachedException e) {
+      return buffer.truncated();
+    }
+    return buffer.toString();
+  }
+
+  private void write(JsonWriter writer, BsonDocument command) {
+    if (omittedPayloads.isEmpty()) {
+      VALUE_CODEC.encode(writer, command, ENCODER_CONTEXT);
+      return;
+    }
+    writer.writeStartDocument();
+    for (Entry<String, BsonValue> entry : command.entrySet()) {
+      BsonValue value = entry.getValue();
+      writer.writeName(entry.getKey());
+      if (value.isArray() && omittedPayloads.contains(entry.getKey())) {
+        writer.writeStartDocument();
+        writer.writeInt32(OMITTED_KEY, value.asArray().size());
+        writer.writeEndDocument();
+      } else {
+        VALUE_CODEC.encode(writer, value, ENCODER_CONTEXT);
+      }
+    }
+    writer.writeEndDocument();
+  }
+
+  /**
+   * Writes the command with obfuscated literals. Must stay in line with {@link
+   * #commandFingerprint(BsonDocument)}.
+   */
+  private void writeCommandShape(JsonWriter writer, BsonDocument command) {
+    boolean first = true;
+    writer.writeStartDocument();
+    for (Entry<String, BsonValue> entry : command.entrySet()) {
+      String key = entry.getKey();
+      BsonValue value = entry.getValue();
+      writer.writeName(key);
+      if (isKeptLiteral(first, key, value)) {
+        writer.writeString(value.asString().getValue());
+      } else if (value.isArray() && omittedPayloads.contains(key)) {
+        writer.writeStartDocument();
+        writer.writeString(OMITTED_KEY, PLACEHOLDER);
+        writer.writeEndDocument();
+      } else {
+        writeShape(writer, value);
+      }
+      first = false;
+    }
+    writer.writeEndDocument();
+  }
+
+  private static void writeShape(JsonWriter writer, BsonValue value) {
+    if (value.isDocument()) {
+      writer.writeStartDocument();
+      for (Entry<String, BsonValue> entry : value.asDocument().entrySet()) {
+        writer.writeName(entry.getKey());
+        writeShape(writer, entry.getValue());
+      }
+      writer.writeEndDocument();
+    } else if (value.isArray() && containsContainers(value)) {
+      writer.writeStartArray();
+      long previous = 0;
+      for (BsonValue element : value.asArray()) {
+        long fingerprint = fingerprint(element);
+        if (fingerprint != previous) {
+          writeShape(writer, element);
+        }
+        previous = fingerprint;
+      }
+      writer.writeEndArray();
+    } else {
+      writer.writeString(PLACEHOLDER);
+    }
+  }
+
+  /**
+   * Structural fingerprint of the shape written by {@link #writeCommandShape(JsonWriter,
+   * BsonDocument)}
+   */
+  long commandFingerprint(BsonDocument command) {
+    long hash = mix(OFFSET_BASIS, DOCUMENT_MARKER);
+    boolean first = true;
+    for (Entry<String, BsonValue> entry : command.entrySet()) {
+      String key = entry.getKey();
+      BsonValue value = entry.getValue();
+      hash = mix(hash, key);
+      if (isKeptLiteral(first, key, value)) {
+        hash = mix(mix(hash, LITERAL_MARKER), value.asString().getValue());
+      } else if (value.isArray() && omittedPayloads.contains(key)) {
+        hash = mix(hash, ARRAY_MARKER);
+      } else {
+        hash = mix(hash, fingerprint(value));
+      }
+      first = false;
+    }
+    return mix(hash, END_MARKER);
+  }
+
+  private static long fingerprint(BsonValue value) {
+    long hash = OFFSET_BASIS;
+    if (value.isDocument()) {
+      hash = mix(hash, DOCUMENT_MARKER);
+      for (Entry<String, BsonValue> entry : value.asDocument().entrySet()) {
+        hash = mix(mix(hash, entry.getKey()), fingerprint(entry.getValue()));
+      }
+    } else if (value.isArray() && containsContainers(value)) {
+      hash = mix(hash, ARRAY_MARKER);
+      long previous = 0;
+      for (BsonValue element : value.asArray()) {
+        long fingerprint = fingerprint(element);
+        if (fingerprint != previous) {
+          hash = mix(hash, fingerprint);
+        }
+        previous = fingerprint;
+      }
+    } else {
+      hash = mix(hash, LITERAL_MARKER);
+    }
+    return mix(hash, END_MARKER);
+  }
+
+  /**
+   * Collects the structure fingerprinted by {@link #commandFingerprint(BsonDocument)}: keys, kept
+   * literals and {@link Token}s
+   */
+  private void collectCommand(BsonDocument command, List<Object> structure) {
+    boolean first = true;
+    structure.add(Token.DOCUMENT);
+    for (Entry<String, BsonValue> entry : command.entrySet()) {
+      String key = entry.getKey();
+      BsonValue value = entry.getValue();
+      structure.add(key);
+      if (isKeptLiteral(first, key, value)) {
+        structure.add(Token.LITERAL);
+        structure.add(value.asString().getValue());
+      } else if (value.isArray() && omittedPayloads.contains(key)) {
+        structure.add(Token.ARRAY);
+      } else {
+        collect(value, structure);
+      }
+      first = false;
+    }
+    structure.add(Token.END);
+  }
+
+  private static void collect(BsonValue value, List<Object> structure) {
+    if (value.isDocument()) {
+      structure.add(Token.DOCUMENT);
+      for (Entry<String, BsonValue> entry : value.asDocument().entrySet()) {
+        structure.add(entry.getKey());
+        collect(entry.getValue(), structure);
+      }
+      structure.add(Token.END);
+    } else if (value.isArray() && containsContainers(value)) {
+      structure.add(Token.ARRAY);
+      long previous = 0;
+      for (BsonValue element : value.asArray()) {
+        long fingerprint = fingerprint(element);
+        if (fingerprint != previous) {
+          collect(element, structure);
+        }
+        previous = fingerprint;
+      }
+      structure.add(Token.END);
+    } else {
+      structure.add(Token.LITERAL);
+    }
+  }
+
+  /**
+   * Whether the command has the structure collected by {@link #collectCommand(BsonDocument, List)}
+   */
+  private boolean matchesCommand(BsonDocument command, Object[] structure) {
+    boolean first = true;
+    int position = 0;
+    if (token(structure, position++) != Token.DOCUMENT) {
+      return false;
+    }
+    for (Entry<String, BsonValue> entry : command.entrySet()) {
+      String key = entry.getKey();
+      BsonValue value = entry.getValue();
+      if (!key.equals(token(structure, position++))) {
+        return false;
+      }
+      if (isKeptLiteral(first, key, value)) {
+        if (token(structure, position++) != Token.LITERAL
+            || !value.asString().getValue().equals(token(structure, position++))) {
+          return false;
+        }
+      } else if (value.isArray() && omittedPayloads.contains(key)) {
+        if (token(structure, position++) != Token.ARRAY) {
+          return false;
+        }
+      } else {
+        position = match(value, structure, position);
+        if (position < 0) {
+          return false;
+        }
+      }
+      first = false;
+    }
+    return token(structure, position++) == Token.END && position == structure.length;
+  }
+
+  /**
+   * @return the position following the structure of the value, or -1 if it does not match
+   */
+  private static int match(BsonValue value, Object[] structure, int position) {
+    if (value.isDocument()) {
+      if (token(structure, position++) != Token.DOCUMENT) {
+        return -1;
+      }
+      for (Entry<String, BsonValue> entry : value.asDocument().entrySet()) {
+        if (!entry.getKey().equals(token(structure, position++))) {
+          return -1;
+        }
+        position = match(entry.getValue(), structure, position);
+        if (position < 0) {
+          return -1;
+        }
+      }
+    } else if (value.isArray() && containsContainers(value)) {
+      if (token(structure, position++) != Token.ARRAY) {
+        return -1;
+      }
+      long previous = 0;
+      for (BsonValue element : value.asArray()) {
+        long fingerprint = fingerprint(element);
+        if (fingerprint != previous) {
+          position = match(element, structure, position);
+          if (position < 0) {
+            return -1;
+          }
+        }
+        previous = fingerprint;
+      }
+    } else {
+      return token(structure, position) == Token.LITERAL ? position + 1 : -1;
+    }
+    return token(structure, position) == Token.END ? position + 1 : -1;
+  }
+
+  private static Object token(Object[] structure, int position) {
+    return position < structure.length ? structure[position] : null;
+  }
+
+  /**
+   * The collection name, which is the value of the first key, and the database are not obfuscated
+   */
+  private static boolean isKeptLiteral(boolean first, String key, BsonValue value) {
+    return value.isString() && (first || DATABASE_KEY.equals(key));
+  }
+
+  private static boolean containsContainers(BsonValue array) {
+    for (BsonValue element : array.asArray()) {
+      if (element.isDocument() || element.isArray()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Rendered shape with the structure it was rendered from
+   */
+  static final class Shape {
+    private final Object[] structure;
+    private final String json;
+
+    private Shape(Object[] structure, String json) {
+      this.structure = structure;
+      this.json = json;
+    }
+  }
+
+  /**
+   * Thrown once the length limit is reached to stop the traversal of the command. Shared and
+   * without stack trace as it is used for control flow only.
+   */
+  private static final class LimitReachedException extends RuntimeException {
+    private static final LimitReachedException INSTANCE = new LimitReachedException();
+
+    private LimitReachedException() {
+      super(null, null, false, false);
+    }
+  }
+
+  /**
+   * Writes object ids as relaxed extended JSON, {@code {"$oid": "<hex>"}}, like the driver's
+   * converter, but renders the hex digits in the buffer of the thread instead of allocating a
+   * byte array, a byte buffer, a char array and a nested JSON context per object id
+   */
+  private static final class ObjectIdConverter implements Converter<ObjectId> {
+    @Override
+    public void convert(ObjectId value, StrictJsonWriter writer) {
+      writer.writeRaw(BUFFERS.get().objectIdJson(value));
+    }
+  }
+
+  /**
+   * Reusable character sink bounded by the current length limit
+   */
+  private static final class StatementBuffer extends Writer {
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final String OBJECT_ID_PREFIX = "{\"$oid\": \"";
+    private static final int OBJECT_ID_BYTES = 12;
+
+    private StringBuilder builder = new StringBuilder(INITIAL_CAPACITY);
+    private int limit;
+    private final ByteBuffer objectIdBytes = ByteBuffer.allocate(OBJECT_ID_BYTES);
+    private final char[] objectIdJson = (OBJECT_ID_PREFIX
+        + new String(new char[OBJECT_ID_BYTES * 2]) + "\"}").toCharArray();
+
+    void reset(int limit) {
+      if (builder.capacity() > MAX_RETAINED_CAPACITY) {
+        builder = new StringBuilder(INITIAL_CAPACITY);
+      } else {
+        builder.setLength(0);
+      }
+      this.limit = limit;
+    }
+
+    String truncated() {
+      return builder.append(TRUNCATION_MARKER).toString();
+    }
+
+    String objectIdJson(ObjectId objectId) {
+      objectIdBytes.clear();
+      objectId.putToByteBuffer(objectIdBytes);
+      int position = OBJECT_ID_PREFIX.length();
+      for (int i = 0; i < OBJECT_ID_BYTES; i++) {
+        int b = objectIdBytes.get(i);
+        objectIdJson[position++] = HEX_DIGITS[(b >> 4) & 0xf];
+        objectIdJson[position++] = HEX_DIGITS[b & 0xf];
+      }
+      return new String(objectIdJson);
+    }
+
+    @Override
+    public void write(int c) {
+      if (builder.length() >= limit) {
+        throw LimitReachedException.INSTANCE;
+      }
+      builder.append((char) c);
+    }
+
+    @Override
+    public void write(char[] chars, int off, int len) {
+      int remaining = limit - builder.length();
+      if (len > remaining) {
+        builder.append(chars, off, remaining);
+        throw LimitReachedException.INSTANCE;
+      }
+      builder.append(chars, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+      int remaining = limit - builder.length();
+      if (len > remaining) {
+        builder.append(str, off, off + remaining);
+        throw LimitReachedException.INSTANCE;
+      }
+      builder.append(str, off, off + len);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+      return builder.toString();
+    }
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts {@link System#nanoTime()} readings to epoch microseconds for explicit span timestamps.
+ * The conversion is anchored to the wall clock once a minute, so timestamps keep the resolution
+ * of {@code nanoTime} without drifting away from the clock of the tracer.
+ */
+final class Timestamps {
+  private static final long ANCHOR_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  private static volatile Anchor anchor = new Anchor();
+
+  private Timestamps() {
+  }
+
+  static long toEpochMicros(long nanoTime) {
+    Anchor current = anchor;
+    if (nanoTime - current.nanoTime > ANCHOR_INTERVAL_NANOS) {
+      current = new Anchor();
+      anchor = current;
+    }
+    return current.epochMicros + TimeUnit.NANOSECONDS.toMicros(nanoTime - current.nanoTime);
+  }
+
+  /**
+   * Anchors the conversion to the wall clock again, as happens once a minute
+   */
+  static void reanchor() {
+    anchor = new Anchor();
+  }
+
+  private static final class Anchor {
+    private final long epochMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    private final long nanoTime = System.nanoTime();
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterDescription;
+import com.mongodb.connection.ServerDescription;
+import com.mongodb.event.ClusterDescriptionChangedEvent;
+import com.mongodb.event.ClusterListenerAdapter;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.tag.Tags;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Invalidates the cached peer tags of servers whose state or type changed, e.g. after a failover,
+ * so their address is resolved again for the next span.
+ *
+ * <p>Given a tracer, topology changes are also traced: each change is recorded by a {@value
+ * #TOPOLOGY_CHANGED} span logging the servers which changed, and the time without a writable
+ * server, during which server selection for writes blocks, by a {@value #NO_WRITABLE_SERVER} span.
+ * Descriptions updated by heartbeats only are skipped without allocating.
+ */
+public class TracingClusterListener extends ClusterListenerAdapter {
+  static final String TOPOLOGY_CHANGED = "cluster.topology_changed";
+  static final String NO_WRITABLE_SERVER = "cluster.no_writable_server";
+  static final String CLUSTER_TYPE_TAG = "cluster.type";
+  static final String PRIMARY_TAG = "cluster.primary";
+
+  private final Tracer tracer;
+  // guarded by this
+  private Span noWritableServerSpan;
+
+  public TracingClusterListener() {
+    this(null);
+  }
+
+  /**
+   * @param tracer tracer of the topology spans, {@code null} to only invalidate peer tags
+   */
+  public TracingClusterListener(Tracer tracer) {
+    this.tracer = tracer;
+  }
+
+  @Override
+  public void clusterDescriptionChanged(ClusterDescriptionChangedEvent event) {
+    ClusterDescription previous = event.getPreviousDescription();
+    ClusterDescription current = event.getNewDescription();
+    if (previous.getType() == current.getType()
+        && !hasChanged(previous.getServerDescriptions(), current.getServerDescriptions())) {
+      return;
+    }
+    List<ServerDescription> newDescriptions = current.getServerDescriptions();
+    Map<ServerAddress, ServerDescription> newDescriptionsByAddress = new HashMap<>(
+        newDescriptions.size() * 2);
+    for (ServerDescription description : newDescriptions) {
+      newDescriptionsByAddress.put(description.getAddress(), description);
+    }
+    List<Map<String, Object>> changes = tracer == null ? null
+        : new ArrayList<Map<String, Object>>();
+    for (ServerDescription description : previous.getServerDescriptions()) {
+      ServerDescription newDescription = newDescriptionsByAddress.remove(description.getAddress());
+      if (hasChanged(description, newDescription)) {
+        PeerTags.invalidate(description.getAddress());
+        if (changes != null) {
+          changes.add(change(description.getAddress(), description, newDescription));
+        }
+      }
+    }
+    if (changes == null) {
+      return;
+    }
+    for (ServerDescription added : newDescriptionsByAddress.values()) {
+      changes.add(change(added.getAddress(), null, added));
+    }
+    if (!changes.isEmpty() || previous.getType() != current.getType()) {
+      traceTopologyChange(current, changes);
+    }
+    traceWritableServer(previous, current);
+  }
+
+  private void traceTopologyChange(ClusterDescription current, List<Map<String, Object>> changes) {
+    long now = Timestamps.toEpochMicros(System.nanoTime());
+    Span span = clusterSpan(TOPOLOGY_CHANGED, current, now);
+    for (Map<String, Object> change : changes) {
+      span.log(now, change);
+    }
+    span.finish(now);
+  }
+
+  /**
+   * Starts the {@value #NO_WRITABLE_SERVER} span when the last writable server is lost and
+   * finishes it when one is found again
+   */
+  private synchronized void traceWritableServer(ClusterDescription previous,
+      ClusterDescription current) {
+    if (noWritableServerSpan == null) {
+      if (previous.hasWritableServer() && !current.hasWritableServer()) {
+        noWritableServerSpan = clusterSpan(NO_WRITABLE_SERVER, current,
+            Timestamps.toEpochMicros(System.nanoTime()));
+      }
+    } else if (current.hasWritableServer()) {
+      noWritableServerSpan.setTag(CLUSTER_TYPE_TAG, current.getType().name());
+      tagPrimary(noWritableServerSpan, current);
+      noWritableServerSpan.finish(Timestamps.toEpochMicros(System.nanoTime()));
+      noWritableServerSpan = null;
+    }
+  }
+
+  private Span clusterSpan(String operationName, ClusterDescription description, long now) {
+    Span span = tracer.buildSpan(operationName)
+        .withStartTimestamp(now)
+        .withTag(Tags.COMPONENT.getKey(), TracingCommandListener.COMPONENT_NAME)
+        .withTag(CLUSTER_TYPE_TAG, description.getType().name())
+        .start();
+    tagPrimary(span, description);
+    return span;
+  }
+
+  private static void tagPrimary(Span span, ClusterDescription description) {
+    for (ServerDescription server : description.getServerDescriptions()) {
+      if (server.isPrimary()) {
+        span.setTag(PRIMARY_TAG, server.getAddress().toString());
+        return;
+      }
+    }
+  }
+
+  private static Map<String, Object> change(ServerAddress address, ServerDescription previous,
+      ServerDescription current) {
+    Map<String, Object> change = new HashMap<>(4);
+    change.put("event", "server changed");
+    change.put("server", address.toString());
+    if (previous != null) {
+      change.put("previous", previous.getState() + " " + previous.getType());
+    }
+    change.put("current",
+        current == null ? "REMOVED" : current.getState() + " " + current.getType());
+    return change;
+  }
+
+  /**
+   * Compares the descriptions in order, a reordering is resolved by address afterwards
+   */
+  private static boolean hasChanged(List<ServerDescription> previous,
+      List<ServerDescription> current) {
+    if (previous.size() != current.size()) {
+      return true;
+    }
+    for (int i = 0; i < previous.size(); i++) {
+      if (!previous.get(i).getAddress().equals(current.get(i).getAddress())
+          || hasChanged(previous.get(i), current.get(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Heartbeats update the description of a server without a change of its state or type
+   */
+  private static boolean hasChanged(ServerDescription previous, ServerDescription current) {
+    return current == null || previous.getState() != current.getState()
+        || previous.getType() != current.getType();
+  }
+}
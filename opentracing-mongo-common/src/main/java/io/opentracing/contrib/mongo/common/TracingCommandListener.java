@@ -13,46 +13,131 @@
  */
 package io.opentracing.contrib.mongo.common;
 
+import com.mongodb.connection.ConnectionId;
+import com.mongodb.connection.ServerId;
 import com.mongodb.event.CommandFailedEvent;
 import com.mongodb.event.CommandListener;
 import com.mongodb.event.CommandStartedEvent;
 import com.mongodb.event.CommandSucceededEvent;
 import io.opentracing.Span;
 import io.opentracing.Tracer;
+import io.opentracing.contrib.mongo.common.metrics.ConnectionPoolMetrics;
 import io.opentracing.contrib.mongo.common.providers.MongoSpanNameProvider;
 import io.opentracing.contrib.mongo.common.providers.NoopSpanNameProvider;
+import io.opentracing.contrib.mongo.common.samplers.CommandSampler;
 import io.opentracing.tag.Tags;
 import io.opentracing.util.GlobalTracer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
-import org.bson.BsonNull;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
 import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
 
 /**
- * In Async Mongo driver methods of this Listener run in different threads therefore cache is used
+ * In Async Mongo driver methods of this Listener run in different threads therefore cache is used.
+ *
+ * <p>Spans of commands which neither succeed nor fail, e.g. because their connection died, are
+ * finished with an error once their time to live expires or their connection is closed, see
+ * {@link TracingConnectionPoolListener}.
+ *
+ * <p>Spans are started with a {@link System#nanoTime()} reading taken when the command is sent and
+ * finished after the elapsed time measured by the driver, so their duration is the round trip of
+ * the command, whenever the span is finished.
  */
 public class TracingCommandListener implements CommandListener {
   public static final String COMPONENT_NAME = "java-mongo";
 
+  public static final long DEFAULT_SPAN_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+  public static final int DEFAULT_MAX_IN_FLIGHT_SPANS = 100_000;
+  public static final int DEFAULT_FINISH_QUEUE_CAPACITY = 8192;
+
+  static final String TIMEOUT_EVENT = "timeout";
+  static final String CONNECTION_CLOSED_EVENT = "connection closed";
+  static final String POOL_WAIT_TAG = "pool.wait_us";
+
+  private static final long MAX_SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long OVERHEAD_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
   private final Tracer tracer;
-  private final List<ExcludedCommand> excludedCommands;
-  private final List<SpanDecorator> decorators;
+  private final ExcludedCommandMatcher excludedCommands;
+  private final DecoratorRoutes decoratorRoutes;
   private final MongoSpanNameProvider mongoSpanNameProvider;
+  private final CommandSampler sampler;
+  private final long spanTtlNanos;
+  private final long sweepIntervalNanos;
+  private final int maxInFlightSpans;
   /**
    * Cache for (request id, span) pairs
    */
-  private final Map<Integer, Span> cache = new ConcurrentHashMap<>();
+  private final InFlightTable<Span> cache = new InFlightTable<>();
+  /**
+   * Decorators of the spans in {@link #cache} if decorators are routed or degraded by the overhead
+   * governor, otherwise {@code null}
+   */
+  private final InFlightTable<SpanDecorator[]> routedDecorators;
+  /**
+   * Started commands in slow command retention mode
+   */
+  /**
+   * Started commands in slow command retention mode, {@code null} otherwise
+   */
+  private final InFlightTable<CommandStartedEvent> pending;
+  private final boolean slowCommandRetention;
+  private final boolean topologyTracing;
+  private final long defaultSlowCommandThresholdNanos;
+  private final Map<String, Long> slowCommandThresholdsNanos;
+  /**
+   * Open cursors and their getMores in flight in cursor aggregation mode, otherwise {@code null}
+   */
+  private final CursorSpans cursorSpans;
+  /**
+   * Finishes spans off the driver threads in asynchronous finishing mode, otherwise {@code null}
+   */
+  private final AsyncSpanFinisher asyncFinisher;
+  /**
+   * Pool metrics by server, maintained by {@link TracingConnectionPoolListener}
+   */
+  private final ConcurrentMap<ServerId, ConnectionPoolMetrics> poolMetrics =
+      new ConcurrentHashMap<>();
+  private final AtomicLong nextSweepNanos;
+  /**
+   * Degrades tracing while the listener exceeds its overhead budget, otherwise {@code null}
+   */
+  private final OverheadGovernor governor;
+  /**
+   * {@link SpanDecorator#DEFAULT} alone, run from the {@link TracingLevel#NO_DECORATORS} level
+   */
+  private final SpanDecorator[] minimalDecorators;
 
 
   public static class Builder {
     private Tracer tracer;
     private List<ExcludedCommand> excludedCommands;
     private List<SpanDecorator> decorators;
+    private final List<DecoratorRoutes.Route> decoratorRoutes = new ArrayList<>();
     private MongoSpanNameProvider spanNameProvider;
+    private StatementRenderer statementRenderer;
+    private FailureLogPolicy failureLogPolicy;
+    private CommandSampler sampler;
+    private long spanTtlMillis = DEFAULT_SPAN_TTL_MILLIS;
+    private int maxInFlightSpans = DEFAULT_MAX_IN_FLIGHT_SPANS;
+    private Long slowCommandThresholdNanos;
+    private final Map<String, Long> slowCommandThresholdsNanos = new HashMap<>();
+    private boolean cursorAggregation;
+    private int finisherThreads;
+    private int finishQueueCapacity = DEFAULT_FINISH_QUEUE_CAPACITY;
+    private FullQueuePolicy fullQueuePolicy = FullQueuePolicy.DROP;
+    private double overheadBudget;
+    private boolean topologyTracing;
 
     public Builder() {
     }
@@ -80,15 +165,173 @@ public class TracingCommandListener implements CommandListener {
       return this;
     }
 
+    /**
+     * Apply the given decorators, after those of {@link #withSpanDecorators(List)}, only to the
+     * commands with the given database, collection and command name, {@code null} matching any.
+     * Use it to limit expensive decorators to the collections or commands which need them.
+     */
+    public Builder withRoutedSpanDecorators(String database, String collection,
+        String commandName, List<SpanDecorator> decorators) {
+      this.decoratorRoutes.add(new DecoratorRoutes.Route(database, collection, commandName,
+          decorators));
+      return this;
+    }
+
     public Builder withSpanNameProvider(MongoSpanNameProvider spanNameProvider) {
       this.spanNameProvider = spanNameProvider;
       return this;
     }
 
+    /**
+     * Specify how {@link SpanDecorator#DEFAULT} renders the {@code db.statement} tag. By default,
+     * {@link StatementRenderer#DEFAULT}.
+     */
+    public Builder withStatementRenderer(StatementRenderer statementRenderer) {
+      this.statementRenderer = statementRenderer;
+      return this;
+    }
+
+    /**
+     * Specify what {@link SpanDecorator#DEFAULT} logs for failed commands. By default, {@link
+     * FailureLogPolicy#DEFAULT}.
+     */
+    public Builder withFailureLogPolicy(FailureLogPolicy failureLogPolicy) {
+      this.failureLogPolicy = failureLogPolicy;
+      return this;
+    }
+
+    /**
+     * Specify which commands are traced. Commands which are not sampled are ignored before their
+     * span is built. By default, {@link CommandSampler#ALWAYS}.
+     */
+    public Builder withCommandSampler(CommandSampler sampler) {
+      this.sampler = sampler;
+      return this;
+    }
+
+    /**
+     * Time after which the span of a command without reply is finished with an error. By default,
+     * {@link #DEFAULT_SPAN_TTL_MILLIS}.
+     */
+    public Builder withSpanTtl(long spanTtl, TimeUnit unit) {
+      this.spanTtlMillis = unit.toMillis(spanTtl);
+      return this;
+    }
+
+    /**
+     * Maximum number of spans in flight. Commands started beyond are not traced. By default,
+     * {@link #DEFAULT_MAX_IN_FLIGHT_SPANS}.
+     */
+    public Builder withMaxInFlightSpans(int maxInFlightSpans) {
+      this.maxInFlightSpans = maxInFlightSpans;
+      return this;
+    }
+
+    /**
+     * Only trace commands which fail or take at least the given time. Started commands are kept
+     * without building a span, which is built after the fact with the start time of the command
+     * once it fails or turns out to be slow. The {@link CommandSampler} is not consulted in this
+     * mode.
+     */
+    public Builder withSlowCommandRetention(long threshold, TimeUnit unit) {
+      this.slowCommandThresholdNanos = unit.toNanos(threshold);
+      return this;
+    }
+
+    /**
+     * Threshold for commands with the given name in slow command retention mode, overriding the
+     * one given to {@link #withSlowCommandRetention(long, TimeUnit)}.
+     */
+    public Builder withSlowCommandThreshold(String commandName, long threshold, TimeUnit unit) {
+      this.slowCommandThresholdsNanos.put(commandName, unit.toNanos(threshold));
+      return this;
+    }
+
+    /**
+     * Aggregate the {@code getMore} commands of a cursor into the span of the {@code find} or
+     * {@code aggregate} command which opened it, instead of tracing each of them. The span finishes
+     * once the cursor is exhausted or killed and records the number of batches, the documents
+     * returned and the total server time. Idle cursors are finished with an error after the span
+     * time to live. Not supported in slow command retention mode.
+     */
+    public Builder withCursorAggregation() {
+      this.cursorAggregation = true;
+      return this;
+    }
+
+    /**
+     * Run the decorators and finish spans of completed commands on the given number of dedicated
+     * daemon threads, so a slow tracer does not delay the driver threads. Completed commands are
+     * handed off through lock-free bounded queues, see {@link #withFinishQueue(int,
+     * FullQueuePolicy)}. Spans are finished with the time their command completed. Not applied to
+     * spans built in slow command retention mode or kept open by cursor aggregation.
+     */
+    public Builder withAsyncFinishing(int finisherThreads) {
+      this.finisherThreads = finisherThreads;
+      return this;
+    }
+
+    /**
+     * Capacity of the queue of each finisher thread, a power of two of at least 2, and what
+     * happens to spans completed while it is full. By default, {@link
+     * #DEFAULT_FINISH_QUEUE_CAPACITY} and {@link FullQueuePolicy#DROP}.
+     */
+    public Builder withFinishQueue(int capacity, FullQueuePolicy fullQueuePolicy) {
+      this.finishQueueCapacity = capacity;
+      this.fullQueuePolicy = fullQueuePolicy;
+      return this;
+    }
+
+    /**
+     * Degrade tracing step by step, see {@link TracingLevel}, while the time spent by the listener
+     * on the driver threads exceeds the given fraction of one CPU, e.g. {@code 0.05} for 5%. The
+     * time is sampled and the level adjusted every second, full tracing is restored step by step
+     * once the time falls below half of the budget.
+     */
+    public Builder withOverheadBudget(double cpuFraction) {
+      this.overheadBudget = cpuFraction;
+      return this;
+    }
+
+    /**
+     * Have the tracing clients also register a {@link TracingClusterListener} and a {@link
+     * TracingServerMonitorListener}, which trace topology changes and heartbeat outcome changes
+     */
+    public Builder withTopologyTracing() {
+      this.topologyTracing = true;
+      return this;
+    }
+
     public TracingCommandListener build() {
+      return new TracingCommandListener(withDefaults());
+    }
+
+    private Builder withDefaults() {
+      if (spanTtlMillis <= 0) {
+        throw new IllegalArgumentException("spanTtl must be positive");
+      }
+      if (maxInFlightSpans <= 0) {
+        throw new IllegalArgumentException("maxInFlightSpans must be positive");
+      }
+      if (finisherThreads < 0) {
+        throw new IllegalArgumentException("finisherThreads must not be negative");
+      }
+      if (finishQueueCapacity < 2 || Integer.bitCount(finishQueueCapacity) != 1) {
+        throw new IllegalArgumentException(
+            "finishQueueCapacity must be a power of two of at least 2");
+      }
+      if (fullQueuePolicy == null) {
+        throw new IllegalArgumentException("fullQueuePolicy must not be null");
+      }
+      if (!(overheadBudget >= 0)) {
+        throw new IllegalArgumentException("overheadBudget must not be negative");
+      }
       if (tracer == null) {
         tracer = GlobalTracer.get();
       }
+      if (sampler == null) {
+        sampler = CommandSampler.ALWAYS;
+      }
       if (spanNameProvider == null) {
         spanNameProvider = new NoopSpanNameProvider();
       }
@@ -98,8 +341,27 @@ public class TracingCommandListener implements CommandListener {
       if (decorators == null) {
         decorators = Collections.singletonList(SpanDecorator.DEFAULT);
       }
+      if (statementRenderer != null || failureLogPolicy != null) {
+        SpanDecorator defaultDecorator = new DefaultSpanDecorator(
+            statementRenderer != null ? statementRenderer : StatementRenderer.DEFAULT,
+            failureLogPolicy != null ? failureLogPolicy : FailureLogPolicy.DEFAULT);
+        decorators = withDefaultDecorator(decorators, defaultDecorator);
+        for (int i = 0; i < decoratorRoutes.size(); i++) {
+          DecoratorRoutes.Route route = decoratorRoutes.get(i);
+          decoratorRoutes.set(i, new DecoratorRoutes.Route(route.database, route.collection,
+              route.commandName, withDefaultDecorator(route.decorators, defaultDecorator)));
+        }
+      }
+      return this;
+    }
 
-      return new TracingCommandListener(tracer, spanNameProvider, excludedCommands, decorators);
+    private static List<SpanDecorator> withDefaultDecorator(List<SpanDecorator> decorators,
+        SpanDecorator defaultDecorator) {
+      List<SpanDecorator> result = new ArrayList<>(decorators.size());
+      for (SpanDecorator decorator : decorators) {
+        result.add(decorator == SpanDecorator.DEFAULT ? defaultDecorator : decorator);
+      }
+      return result;
     }
   }
 
@@ -111,73 +373,472 @@ public class TracingCommandListener implements CommandListener {
 
   public TracingCommandListener(Tracer tracer, MongoSpanNameProvider customNameProvider,
       List<ExcludedCommand> excludedCommands, List<SpanDecorator> decorators) {
-    this.tracer = tracer;
-    this.mongoSpanNameProvider = customNameProvider;
-    this.excludedCommands = new ArrayList<>(excludedCommands);
-    this.decorators = decorators;
+    this(new Builder(tracer)
+        .withSpanNameProvider(customNameProvider)
+        .withExcludedCommands(excludedCommands)
+        .withSpanDecorators(decorators)
+        .withDefaults());
+  }
+
+  private TracingCommandListener(Builder builder) {
+    this.tracer = builder.tracer;
+    this.mongoSpanNameProvider = builder.spanNameProvider;
+    this.sampler = builder.sampler;
+    this.excludedCommands = new ExcludedCommandMatcher(builder.excludedCommands);
+    this.decoratorRoutes = new DecoratorRoutes(builder.decorators, builder.decoratorRoutes);
+    this.topologyTracing = builder.topologyTracing;
+    this.governor = builder.overheadBudget > 0 ? new OverheadGovernor(builder.overheadBudget,
+        OVERHEAD_WINDOW_NANOS, System.nanoTime()) : null;
+    this.minimalDecorators = minimalDecorators(builder.decorators);
+    this.routedDecorators = decoratorRoutes.isEmpty() && governor == null ? null
+        : new InFlightTable<SpanDecorator[]>();
+    this.spanTtlNanos = TimeUnit.MILLISECONDS.toNanos(builder.spanTtlMillis);
+    this.sweepIntervalNanos = Math.min(spanTtlNanos, MAX_SWEEP_INTERVAL_NANOS);
+    this.maxInFlightSpans = builder.maxInFlightSpans;
+    this.nextSweepNanos = new AtomicLong(System.nanoTime() + sweepIntervalNanos);
+    this.slowCommandRetention = builder.slowCommandThresholdNanos != null;
+    this.pending = slowCommandRetention ? new InFlightTable<CommandStartedEvent>() : null;
+    this.defaultSlowCommandThresholdNanos = slowCommandRetention
+        ? builder.slowCommandThresholdNanos : 0;
+    this.slowCommandThresholdsNanos = new HashMap<>(builder.slowCommandThresholdsNanos);
+    this.cursorSpans = builder.cursorAggregation && !slowCommandRetention
+        ? new CursorSpans() : null;
+    this.asyncFinisher = builder.finisherThreads > 0 ? new AsyncSpanFinisher(
+        builder.finishQueueCapacity, builder.finisherThreads, builder.fullQueuePolicy) : null;
   }
 
 
   @Override
   public void commandStarted(CommandStartedEvent event) {
-    Span span = buildSpan(event);
-    if (span != null) {
-      cache.put(event.getRequestId(), span);
+    long now = System.nanoTime();
+    if (governor != null && OverheadGovernor.isTimed(event.getRequestId())) {
+      started(event, now);
+      governor.record(now, System.nanoTime());
+    } else {
+      started(event, now);
     }
   }
 
   @Override
   public void commandSucceeded(CommandSucceededEvent event) {
+    if (governor != null && OverheadGovernor.isTimed(event.getRequestId())) {
+      long start = System.nanoTime();
+      succeeded(event);
+      governor.record(start, System.nanoTime());
+    } else {
+      succeeded(event);
+    }
+  }
+
+  @Override
+  public void commandFailed(CommandFailedEvent event) {
+    if (governor != null && OverheadGovernor.isTimed(event.getRequestId())) {
+      long start = System.nanoTime();
+      failed(event);
+      governor.record(start, System.nanoTime());
+    } else {
+      failed(event);
+    }
+  }
+
+  private void started(CommandStartedEvent event, long now) {
+    sweepExpired(now);
+    long checkoutWaitNanos = poolMetrics.isEmpty() ? -1 : CheckoutWait.current()
+        .commandStarted(event.getConnectionDescription().getConnectionId());
+    if (cache.size() + (pending == null ? 0 : pending.size())
+        + (cursorSpans == null ? 0 : cursorSpans.size()) >= maxInFlightSpans) {
+      return;
+    }
+    if (slowCommandRetention) {
+      if (!excludedCommands.isExcluded(event)) {
+        pending.put(event.getRequestId(), retained(event), now,
+            event.getConnectionDescription().getConnectionId());
+      }
+      return;
+    }
+    if (cursorSpans != null && cursorSpans.commandStarted(event, now)) {
+      return;
+    }
+    TracingLevel level = governor == null ? TracingLevel.FULL : governor.level();
+    if (level == TracingLevel.SAMPLED && !OverheadGovernor.isSampled(event.getRequestId())) {
+      return;
+    }
+    if (excludedCommands.isExcluded(event) || !sampler.isSampled(event)) {
+      return;
+    }
+    SpanDecorator[] spanDecorators = decorators(event, level);
+    long startMicros = Timestamps.toEpochMicros(now);
+    Span span = startSpan(event, startMicros, spanDecorators, level);
+    if (checkoutWaitNanos >= 0) {
+      span.setTag(POOL_WAIT_TAG, TimeUnit.NANOSECONDS.toMicros(checkoutWaitNanos));
+    }
+    cache.put(event.getRequestId(), span, now, startMicros,
+        event.getConnectionDescription().getConnectionId());
+    if (routedDecorators != null) {
+      routedDecorators.put(event.getRequestId(), spanDecorators, now,
+          event.getConnectionDescription().getConnectionId());
+    }
+  }
+
+  private void succeeded(CommandSucceededEvent event) {
+    if (slowCommandRetention) {
+      long elapsedNanos = event.getElapsedTime(TimeUnit.NANOSECONDS);
+      long startNanos = pending.startNanos(event.getRequestId(), System.nanoTime() - elapsedNanos);
+      CommandStartedEvent startedEvent = pending.remove(event.getRequestId());
+      if (startedEvent != null && elapsedNanos >= slowCommandThresholdNanos(startedEvent)) {
+        long startMicros = Timestamps.toEpochMicros(startNanos);
+        TracingLevel level = getTracingLevel();
+        SpanDecorator[] spanDecorators = decorators(startedEvent, level);
+        Span span = startSpan(startedEvent, startMicros, spanDecorators, level);
+        for (SpanDecorator decorator : spanDecorators) {
+          decorator.commandSucceeded(event, span);
+        }
+        span.finish(startMicros + TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+      }
+      return;
+    }
+    if (cursorSpans != null && cursorSpans.commandSucceeded(event)) {
+      return;
+    }
+    long finishMicros = finishMicros(event.getRequestId(),
+        event.getElapsedTime(TimeUnit.NANOSECONDS));
     Span span = cache.remove(event.getRequestId());
     if (span != null) {
-      for (SpanDecorator decorator : decorators) {
+      SpanDecorator[] spanDecorators = removeDecorators(event.getRequestId());
+      if (asyncFinisher != null
+          && (cursorSpans == null || !CursorSpans.opensCursor(event.getCommandName()))) {
+        asyncFinisher.commandSucceeded(event, span, spanDecorators, finishMicros);
+        return;
+      }
+      for (SpanDecorator decorator : spanDecorators) {
         decorator.commandSucceeded(event, span);
       }
-      span.finish();
+      if (cursorSpans == null
+          || !cursorSpans.cursorOpened(event, span, spanDecorators, System.nanoTime())) {
+        span.finish(finishMicros);
+      }
     }
   }
 
-  @Override
-  public void commandFailed(CommandFailedEvent event) {
+  private void failed(CommandFailedEvent event) {
+    if (slowCommandRetention) {
+      long elapsedNanos = event.getElapsedTime(TimeUnit.NANOSECONDS);
+      long startNanos = pending.startNanos(event.getRequestId(), System.nanoTime() - elapsedNanos);
+      CommandStartedEvent startedEvent = pending.remove(event.getRequestId());
+      if (startedEvent != null) {
+        long startMicros = Timestamps.toEpochMicros(startNanos);
+        TracingLevel level = getTracingLevel();
+        SpanDecorator[] spanDecorators = decorators(startedEvent, level);
+        Span span = startSpan(startedEvent, startMicros, spanDecorators, level);
+        for (SpanDecorator decorator : spanDecorators) {
+          decorator.commandFailed(event, span);
+        }
+        span.finish(startMicros + TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+      }
+      return;
+    }
+    if (cursorSpans != null && cursorSpans.commandFailed(event)) {
+      return;
+    }
+    long finishMicros = finishMicros(event.getRequestId(),
+        event.getElapsedTime(TimeUnit.NANOSECONDS));
     Span span = cache.remove(event.getRequestId());
     if (span != null) {
-      for (SpanDecorator decorator : decorators) {
+      SpanDecorator[] spanDecorators = removeDecorators(event.getRequestId());
+      if (asyncFinisher != null) {
+        asyncFinisher.commandFailed(event, span, spanDecorators, finishMicros);
+        return;
+      }
+      for (SpanDecorator decorator : spanDecorators) {
         decorator.commandFailed(event, span);
       }
-      span.finish();
+      span.finish(finishMicros);
     }
   }
 
-  Span buildSpan(CommandStartedEvent event) {
-    for (ExcludedCommand excludedCommand : excludedCommands) {
+  /**
+   * Tracer of the spans of this listener
+   */
+  public Tracer getTracer() {
+    return tracer;
+  }
 
-      boolean skip = true;
-      for (Entry<String, BsonValue> entry : excludedCommand.entrySet()) {
-        if (!event.getCommand().containsKey(entry.getKey())) {
-          skip = false;
-          break;
+  /**
+   * Whether the tracing clients register a {@link TracingClusterListener} and a {@link
+   * TracingServerMonitorListener} with the tracer of this listener
+   */
+  public boolean isTopologyTracing() {
+    return topologyTracing;
+  }
+
+  /**
+   * Metrics of the connection pools of open servers, recorded when a {@link
+   * TracingConnectionPoolListener} of this listener is registered
+   */
+  public Collection<ConnectionPoolMetrics> getConnectionPoolMetrics() {
+    return new ArrayList<>(poolMetrics.values());
+  }
+
+  /**
+   * Number of spans dropped because their finish queue was full in asynchronous finishing mode
+   */
+  public long getDroppedSpans() {
+    return asyncFinisher == null ? 0 : asyncFinisher.getDroppedSpans();
+  }
+
+  /**
+   * Stops the threads finishing spans in asynchronous finishing mode, once they finished the spans
+   * queued. Spans of commands completing afterwards are finished on the driver threads. Called by
+   * the tracing clients when they are closed.
+   */
+  public void close() {
+    if (asyncFinisher != null) {
+      asyncFinisher.close();
+    }
+  }
+
+  /**
+   * Current tracing level, {@link TracingLevel#FULL} without an overhead budget
+   */
+  public TracingLevel getTracingLevel() {
+    return governor == null ? TracingLevel.FULL : governor.level();
+  }
+
+  /**
+   * Estimated fraction of one CPU spent by the listener on the driver threads during the last
+   * second, {@code 0} without an overhead budget
+   */
+  public double getOverhead() {
+    return governor == null ? 0 : governor.overhead();
+  }
+
+  /**
+   * Finishes the spans of all commands sent on a closed connection
+   */
+  public void connectionClosed(final ConnectionId connectionId) {
+    evict(new InFlightTable.EntryFilter() {
+      @Override
+      public boolean shouldEvict(long startNanos, Object owner) {
+        return isSameConnection(connectionId, (ConnectionId) owner);
+      }
+    }, CONNECTION_CLOSED_EVENT);
+  }
+
+  /**
+   * Finishes the spans of all commands sent to a server whose connection pool is closed
+   */
+  public void connectionPoolClosed(final ServerId serverId) {
+    poolMetrics.remove(serverId);
+    evict(new InFlightTable.EntryFilter() {
+      @Override
+      public boolean shouldEvict(long startNanos, Object owner) {
+        return owner != null && serverId.equals(((ConnectionId) owner).getServerId());
+      }
+    }, CONNECTION_CLOSED_EVENT);
+    if (cursorSpans != null) {
+      cursorSpans.evictCursors(System.nanoTime(), Long.MAX_VALUE, serverId,
+          new SpanFinisher(CONNECTION_CLOSED_EVENT));
+    }
+  }
+
+  /**
+   * @param create whether to create the metrics of a server not seen yet, otherwise {@code null}
+   * is returned for it
+   */
+  ConnectionPoolMetrics poolMetrics(ServerId serverId, boolean create) {
+    ConnectionPoolMetrics metrics = poolMetrics.get(serverId);
+    if (metrics == null && create) {
+      metrics = new ConnectionPoolMetrics(serverId.getAddress().toString());
+      ConnectionPoolMetrics existing = poolMetrics.putIfAbsent(serverId, metrics);
+      if (existing != null) {
+        return existing;
+      }
+    }
+    return metrics;
+  }
+
+  /**
+   * Piggy-backs on started commands to finish expired spans at most once per sweep interval
+   */
+  private void sweepExpired(final long now) {
+    long nextSweep = nextSweepNanos.get();
+    if (now - nextSweep < 0
+        || !nextSweepNanos.compareAndSet(nextSweep, now + sweepIntervalNanos)) {
+      return;
+    }
+    evict(new InFlightTable.EntryFilter() {
+      @Override
+      public boolean shouldEvict(long startNanos, Object owner) {
+        return now - startNanos >= spanTtlNanos;
+      }
+    }, TIMEOUT_EVENT);
+    if (cursorSpans != null) {
+      cursorSpans.evictCursors(now, spanTtlNanos, null, new SpanFinisher(TIMEOUT_EVENT));
+    }
+  }
+
+  /**
+   * Finishes evicted spans with an error. Evicted commands pending in slow command retention mode
+   * are dropped.
+   */
+  private void evict(InFlightTable.EntryFilter filter, String event) {
+    SpanFinisher finisher = new SpanFinisher(event);
+    cache.evictIf(filter, finisher);
+    if (routedDecorators != null) {
+      routedDecorators.evictIf(filter, new InFlightTable.Evictor<SpanDecorator[]>() {
+        @Override
+        public void evicted(SpanDecorator[] spanDecorators) {
         }
-        if (entry.getValue() != BsonNull.VALUE
-            && !entry.getValue().equals(event.getCommand().get(entry.getKey()))) {
-          skip = false;
-          break;
+      });
+    }
+    if (cursorSpans != null) {
+      cursorSpans.evictGetMores(filter, finisher);
+    }
+    if (slowCommandRetention) {
+      pending.evictIf(filter, new InFlightTable.Evictor<CommandStartedEvent>() {
+        @Override
+        public void evicted(CommandStartedEvent event) {
         }
+      });
+    }
+  }
+
+  private static boolean isSameConnection(ConnectionId connectionId, ConnectionId owner) {
+    // the server value is only known once the connection is established
+    return owner != null && connectionId.getLocalValue() == owner.getLocalValue()
+        && connectionId.getServerId().equals(owner.getServerId());
+  }
+
+  /**
+   * Copy of a started event whose command can be read after the listener returned. The driver
+   * releases the buffers backing the command document once the command is sent, so buffer backed
+   * documents are copied as raw bytes while decoded values are shared.
+   */
+  private static CommandStartedEvent retained(CommandStartedEvent event) {
+    return new CommandStartedEvent(event.getRequestId(), event.getConnectionDescription(),
+        event.getDatabaseName(), event.getCommandName(), compactCopy(event.getCommand()));
+  }
+
+  /**
+   * Commands carrying a bulk payload are decoded by the driver, except for the documents of the
+   * payload array
+   */
+  private static BsonDocument compactCopy(BsonDocument document) {
+    if (document instanceof RawBsonDocument) {
+      return document;
+    }
+    if (document.getClass() != BsonDocument.class) {
+      // a single copy of the bytes of the driver's buffer backed document
+      return document.clone();
+    }
+    BsonDocument copy = new BsonDocument();
+    for (Map.Entry<String, BsonValue> entry : document.entrySet()) {
+      BsonValue value = entry.getValue();
+      copy.put(entry.getKey(), value.isArray() ? compactCopy(value.asArray()) : value);
+    }
+    return copy;
+  }
+
+  private static BsonArray compactCopy(BsonArray array) {
+    List<BsonValue> copy = new ArrayList<>(array.size());
+    for (BsonValue value : array) {
+      copy.add(value.isDocument() ? compactCopy(value.asDocument()) : value);
+    }
+    return new BsonArray(copy);
+  }
+
+  private long slowCommandThresholdNanos(CommandStartedEvent event) {
+    Long threshold = slowCommandThresholdsNanos.get(event.getCommandName());
+    return threshold == null ? defaultSlowCommandThresholdNanos : threshold;
+  }
+
+  Span buildSpan(CommandStartedEvent event) {
+    if (excludedCommands.isExcluded(event) || !sampler.isSampled(event)) {
+      return null;
+    }
+
+    return startSpan(event, Timestamps.toEpochMicros(System.nanoTime()),
+        decoratorRoutes.decorators(event), TracingLevel.FULL);
+  }
+
+  /**
+   * Decorators of a command at the given tracing level
+   */
+  private SpanDecorator[] decorators(CommandStartedEvent event, TracingLevel level) {
+    return level.compareTo(TracingLevel.NO_DECORATORS) >= 0 ? minimalDecorators
+        : decoratorRoutes.decorators(event);
+  }
+
+  private static SpanDecorator[] minimalDecorators(List<SpanDecorator> decorators) {
+    for (SpanDecorator decorator : decorators) {
+      if (decorator instanceof DefaultSpanDecorator) {
+        return new SpanDecorator[]{decorator};
       }
-      if (skip) {
-        return null;
+    }
+    return new SpanDecorator[0];
+  }
+
+  /**
+   * Decorators of the span of a command, which the caller removed from {@link #cache}
+   */
+  private SpanDecorator[] removeDecorators(int requestId) {
+    SpanDecorator[] spanDecorators = routedDecorators == null ? null
+        : routedDecorators.remove(requestId);
+    return spanDecorators == null ? decoratorRoutes.defaults() : spanDecorators;
+  }
+
+  /**
+   * Finish timestamp of the span of a command, its start timestamp plus the elapsed time measured
+   * by the driver, which excludes the overhead of listeners and tracer. The start timestamp is the
+   * one recorded with the span, as converting its start time again may use another anchor.
+   */
+  private long finishMicros(int requestId, long elapsedNanos) {
+    long startMicros = cache.startMicros(requestId, Long.MIN_VALUE);
+    if (startMicros == Long.MIN_VALUE) {
+      startMicros = Timestamps.toEpochMicros(System.nanoTime() - elapsedNanos);
+    }
+    return startMicros + TimeUnit.NANOSECONDS.toMicros(elapsedNanos);
+  }
+
+  /**
+   * Starts the span of a command with an explicit timestamp, possibly after the fact. The statement
+   * is not rendered from the {@link TracingLevel#NO_STATEMENTS} level.
+   */
+  private Span startSpan(CommandStartedEvent event, long startMicros,
+      SpanDecorator[] spanDecorators, TracingLevel level) {
+    Span span = spanBuilder(event).withStartTimestamp(startMicros).start();
+    for (SpanDecorator decorator : spanDecorators) {
+      if (level != TracingLevel.FULL && decorator instanceof DefaultSpanDecorator) {
+        ((DefaultSpanDecorator) decorator).commandStarted(event, span, false);
+      } else {
+        decorator.commandStarted(event, span);
       }
     }
 
-    Tracer.SpanBuilder spanBuilder = tracer
+    return span;
+  }
+
+  private Tracer.SpanBuilder spanBuilder(CommandStartedEvent event) {
+    return tracer
         .buildSpan(mongoSpanNameProvider.generateName(event))
         .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT);
+  }
 
-    Span span = spanBuilder.start();
-    for (SpanDecorator decorator : decorators) {
-      decorator.commandStarted(event, span);
+  /**
+   * Finishes evicted spans with an error
+   */
+  private static final class SpanFinisher implements InFlightTable.Evictor<Span> {
+    private final String event;
+
+    private SpanFinisher(String event) {
+      this.event = event;
     }
 
-    return span;
+    @Override
+    public void evicted(Span span) {
+      Tags.ERROR.set(span, Boolean.TRUE);
+      span.log(Collections.singletonMap("event", event));
+      span.finish(Timestamps.toEpochMicros(System.nanoTime()));
+    }
   }
-
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import com.mongodb.event.ConnectionAddedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolClosedEvent;
+import com.mongodb.event.ConnectionPoolListenerAdapter;
+import com.mongodb.event.ConnectionPoolOpenedEvent;
+import com.mongodb.event.ConnectionRemovedEvent;
+import io.opentracing.contrib.mongo.common.metrics.ConnectionPoolMetrics;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finishes the spans of commands whose connection is closed before they received a reply.
+ *
+ * <p>Also records the size, connections checked out, wait queue size and checkout wait times of
+ * the pool of each server, see {@link TracingCommandListener#getConnectionPoolMetrics()}. The wait
+ * for a connection is tagged on the span of the first command sent on it, where the thread which
+ * waited also sends the command.
+ */
+public class TracingConnectionPoolListener extends ConnectionPoolListenerAdapter {
+
+  private final TracingCommandListener commandListener;
+
+  public TracingConnectionPoolListener(TracingCommandListener commandListener) {
+    this.commandListener = commandListener;
+  }
+
+  @Override
+  public void connectionPoolOpened(ConnectionPoolOpenedEvent event) {
+    commandListener.poolMetrics(event.getServerId(), true);
+  }
+
+  @Override
+  public void connectionAdded(ConnectionAddedEvent event) {
+    commandListener.poolMetrics(event.getConnectionId().getServerId(), true).connectionAdded();
+  }
+
+  @Override
+  public void connectionRemoved(ConnectionRemovedEvent event) {
+    ConnectionPoolMetrics metrics = commandListener.poolMetrics(
+        event.getConnectionId().getServerId(), false);
+    if (metrics != null) {
+      metrics.connectionRemoved();
+    }
+    commandListener.connectionClosed(event.getConnectionId());
+  }
+
+  // The 3.12 driver deprecates the wait queue events without offering the checkout started and
+  // failed events which replace them in 4.0, so they are the only signal of a checkout wait.
+  // Deprecated types are referenced by their qualified name, as their imports can't be suppressed.
+  @Override
+  @SuppressWarnings("deprecation")
+  public void waitQueueEntered(com.mongodb.event.ConnectionPoolWaitQueueEnteredEvent event) {
+    CheckoutWait.current().waitQueueEntered(System.nanoTime());
+    commandListener.poolMetrics(event.getServerId(), true).waitQueueEntered();
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public void waitQueueExited(com.mongodb.event.ConnectionPoolWaitQueueExitedEvent event) {
+    ConnectionPoolMetrics metrics = commandListener.poolMetrics(event.getServerId(), false);
+    if (metrics != null) {
+      metrics.waitQueueExited();
+    }
+  }
+
+  @Override
+  public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+    long waitNanos = CheckoutWait.current().connectionCheckedOut(event.getConnectionId(),
+        System.nanoTime());
+    commandListener.poolMetrics(event.getConnectionId().getServerId(), true)
+        .connectionCheckedOut(waitNanos, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+    ConnectionPoolMetrics metrics = commandListener.poolMetrics(
+        event.getConnectionId().getServerId(), false);
+    if (metrics != null) {
+      metrics.connectionCheckedIn();
+    }
+  }
+
+  @Override
+  public void connectionPoolClosed(ConnectionPoolClosedEvent event) {
+    commandListener.connectionPoolClosed(event.getServerId());
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+/**
+ * How much of a command {@link TracingCommandListener} traces when its overhead budget is
+ * exceeded, each level degrading the previous one
+ */
+public enum TracingLevel {
+  /**
+   * Every sampled command is traced with all decorators
+   */
+  FULL,
+  /**
+   * The {@code db.statement} tag is not rendered
+   */
+  NO_STATEMENTS,
+  /**
+   * Only {@link SpanDecorator#DEFAULT} runs, without the statement
+   */
+  NO_DECORATORS,
+  /**
+   * As {@link #NO_DECORATORS}, and only one in {@value OverheadGovernor#SAMPLING_RATE} commands is
+   * traced
+   */
+  SAMPLED
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import com.mongodb.connection.ConnectionId;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.ServerHeartbeatFailedEvent;
+import com.mongodb.event.ServerHeartbeatSucceededEvent;
+import com.mongodb.event.ServerMonitorListenerAdapter;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.tag.Tags;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Traces the heartbeats of a server whose outcome differs from the previous one: the first failed
+ * heartbeat, and the first successful one after a failure, which measures the round trip of the
+ * recovered server. Heartbeats with an unchanged outcome cost a map lookup and are not traced.
+ */
+public class TracingServerMonitorListener extends ServerMonitorListenerAdapter {
+  static final String HEARTBEAT = "server.heartbeat";
+  static final String RECOVERED_TAG = "heartbeat.recovered";
+
+  private final Tracer tracer;
+  private final ConcurrentMap<ServerId, Boolean> succeeded = new ConcurrentHashMap<>();
+
+  public TracingServerMonitorListener(Tracer tracer) {
+    this.tracer = tracer;
+  }
+
+  @Override
+  public void serverHeartbeatSucceeded(ServerHeartbeatSucceededEvent event) {
+    ServerId serverId = event.getConnectionId().getServerId();
+    if (succeeded.get(serverId) != Boolean.TRUE
+        && succeeded.put(serverId, Boolean.TRUE) == Boolean.FALSE) {
+      Span span = heartbeatSpan(event.getConnectionId(),
+          event.getElapsedTime(TimeUnit.NANOSECONDS));
+      span.setTag(RECOVERED_TAG, true);
+      span.finish(Timestamps.toEpochMicros(System.nanoTime()));
+    }
+  }
+
+  @Override
+  public void serverHeartbeatFailed(ServerHeartbeatFailedEvent event) {
+    ServerId serverId = event.getConnectionId().getServerId();
+    if (succeeded.get(serverId) != Boolean.FALSE
+        && succeeded.put(serverId, Boolean.FALSE) != Boolean.FALSE) {
+      Span span = heartbeatSpan(event.getConnectionId(),
+          event.getElapsedTime(TimeUnit.NANOSECONDS));
+      Tags.ERROR.set(span, Boolean.TRUE);
+      span.log(FailureLogPolicy.DEFAULT.errorLogs(event.getThrowable()));
+      span.finish(Timestamps.toEpochMicros(System.nanoTime()));
+    }
+  }
+
+  /**
+   * Starts the span when the heartbeat was sent, the events are fired once it completed
+   */
+  private Span heartbeatSpan(ConnectionId connectionId, long elapsedNanos) {
+    Span span = tracer.buildSpan(HEARTBEAT)
+        .withStartTimestamp(Timestamps.toEpochMicros(System.nanoTime() - elapsedNanos))
+        .withTag(Tags.COMPONENT.getKey(), TracingCommandListener.COMPONENT_NAME)
+        .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT)
+        .start();
+    PeerTags.of(connectionId.getServerId().getAddress()).apply(span);
+    return span;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies and failures of the commands of a series, identified by database, collection, command
+ * name and server. Dimensions which are unknown, e.g. the collection of commands without one, are
+ * {@code null}.
+ */
+public final class CommandMetrics {
+  private final String database;
+  private final String collection;
+  private final String commandName;
+  private final String server;
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final AtomicLong failures = new AtomicLong();
+
+  public CommandMetrics(String database, String collection, String commandName, String server) {
+    this.database = database;
+    this.collection = collection;
+    this.commandName = commandName;
+    this.server = server;
+  }
+
+  public void commandSucceeded(long elapsed, TimeUnit unit) {
+    latency.record(elapsed, unit);
+  }
+
+  public void commandFailed(long elapsed, TimeUnit unit) {
+    latency.record(elapsed, unit);
+    failures.incrementAndGet();
+  }
+
+  public String getDatabase() {
+    return database;
+  }
+
+  public String getCollection() {
+    return collection;
+  }
+
+  public String getCommandName() {
+    return commandName;
+  }
+
+  public String getServer() {
+    return server;
+  }
+
+  /**
+   * Latencies of all commands, including failed ones
+   */
+  public HistogramSnapshot getLatency() {
+    return latency.snapshot();
+  }
+
+  public long getFailures() {
+    return failures.get();
+  }
+}
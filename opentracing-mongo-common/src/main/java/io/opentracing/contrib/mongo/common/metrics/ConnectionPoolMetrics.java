@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Size, connections checked out, wait queue size and checkout wait times of the connection pool of
+ * a server. Sizes are maintained from pool events, so they are only exact if the listener was
+ * registered when the pool was opened.
+ */
+public final class ConnectionPoolMetrics {
+  private final String server;
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicInteger checkedOut = new AtomicInteger();
+  private final AtomicInteger waitQueueSize = new AtomicInteger();
+  private final LatencyHistogram waitTime = new LatencyHistogram();
+
+  public ConnectionPoolMetrics(String server) {
+    this.server = server;
+  }
+
+  public void connectionAdded() {
+    size.incrementAndGet();
+  }
+
+  public void connectionRemoved() {
+    size.decrementAndGet();
+  }
+
+  public void waitQueueEntered() {
+    waitQueueSize.incrementAndGet();
+  }
+
+  public void waitQueueExited() {
+    waitQueueSize.decrementAndGet();
+  }
+
+  /**
+   * @param waitTime time waited for the connection, negative if unknown
+   */
+  public void connectionCheckedOut(long waitTime, TimeUnit unit) {
+    checkedOut.incrementAndGet();
+    if (waitTime >= 0) {
+      this.waitTime.record(waitTime, unit);
+    }
+  }
+
+  public void connectionCheckedIn() {
+    checkedOut.decrementAndGet();
+  }
+
+  public String getServer() {
+    return server;
+  }
+
+  public int getSize() {
+    return size.get();
+  }
+
+  public int getCheckedOut() {
+    return checkedOut.get();
+  }
+
+  public int getWaitQueueSize() {
+    return waitQueueSize.get();
+  }
+
+  /**
+   * Times from entering the wait queue to checking out a connection, where both happen on the same
+   * thread, as in the synchronous driver
+   */
+  public HistogramSnapshot getWaitTime() {
+    return waitTime.snapshot();
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common.metrics;
+
+/**
+ * Point in time copy of a {@link LatencyHistogram}. Latencies are in microseconds.
+ */
+public final class HistogramSnapshot {
+  private final long[] counts;
+  private final long count;
+  private final long sumMicros;
+  private final long maxMicros;
+
+  HistogramSnapshot(long[] counts, long sumMicros, long maxMicros) {
+    this.counts = counts;
+    long count = 0;
+    for (long bucketCount : counts) {
+      count += bucketCount;
+    }
+    this.count = count;
+    this.sumMicros = sumMicros;
+    this.maxMicros = maxMicros;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getSumMicros() {
+    return sumMicros;
+  }
+
+  public long getMaxMicros() {
+    return maxMicros;
+  }
+
+  public double getMeanMicros() {
+    return count == 0 ? 0 : (double) sumMicros / count;
+  }
+
+  /**
+   * Latency below which the given percentage of recorded latencies fall, within the precision of
+   * the histogram buckets
+   *
+   * @param percentile between 0 and 100
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile must be between 0 and 100");
+    }
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int index = 0; index < counts.length; index++) {
+      seen += counts[index];
+      if (seen >= rank) {
+        return Math.min(LatencyHistogram.bucketUpperBound(index), maxMicros);
+      }
+    }
+    return maxMicros;
+  }
+
+  /**
+   * Number of latencies recorded up to the given latency, within the precision of the histogram
+   * buckets, e.g. for cumulative histogram buckets of a metrics backend
+   */
+  public long getCountAtOrBelow(long micros) {
+    long result = 0;
+    for (int index = 0; index < counts.length
+        && LatencyHistogram.bucketUpperBound(index) <= micros; index++) {
+      result += counts[index];
+    }
+    return result;
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory latency histogram with lock-free recording.
+ *
+ * <p>Latencies are recorded in microseconds into log-linear buckets: each power of two is split
+ * into {@value #SUB_BUCKETS} linear sub-buckets, which bounds the relative error of percentiles to
+ * about 6%. Latencies above {@link #MAX_TRACKABLE_MICROS}, a bit more than an hour, are recorded
+ * in the last bucket.
+ */
+public final class LatencyHistogram {
+  static final int SUB_BUCKET_BITS = 4;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT = 32;
+  public static final long MAX_TRACKABLE_MICROS = (1L << MAX_EXPONENT) - 1;
+  static final int BUCKETS = bucketIndex(MAX_TRACKABLE_MICROS) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong sumMicros = new AtomicLong();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  public void record(long latency, TimeUnit unit) {
+    long micros = Math.max(0, Math.min(unit.toMicros(latency), MAX_TRACKABLE_MICROS));
+    counts.incrementAndGet(bucketIndex(micros));
+    sumMicros.addAndGet(micros);
+    long max = maxMicros.get();
+    while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+      max = maxMicros.get();
+    }
+  }
+
+  /**
+   * Copies the current state. Recordings made concurrently may be partially reflected, e.g. in the
+   * bucket counts but not yet in the sum.
+   */
+  public HistogramSnapshot snapshot() {
+    long[] snapshot = new long[BUCKETS];
+    for (int index = 0; index < BUCKETS; index++) {
+      snapshot[index] = counts.get(index);
+    }
+    return new HistogramSnapshot(snapshot, sumMicros.get(), maxMicros.get());
+  }
+
+  static int bucketIndex(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * Highest latency in microseconds recorded in the bucket
+   */
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = index % SUB_BUCKETS;
+    int shift = exponent - SUB_BUCKET_BITS;
+    return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+  }
+}
@@ -17,8 +17,25 @@ import com.mongodb.event.CommandStartedEvent;
 import org.bson.BsonDocument;
 import org.bson.BsonValue;
 
+/**
+ * Names spans after the command and its collection, e.g. {@code insert users}. Names are cached,
+ * up to a maximum number of names beyond which spans are named after the command only.
+ */
 public class OperationCollectionSpanNameProvider extends NoopSpanNameProvider {
 
+  private final SpanNameCache names;
+
+  public OperationCollectionSpanNameProvider() {
+    this(SpanNameCache.DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * @param maxCachedNames maximum number of (command, collection) names
+   */
+  public OperationCollectionSpanNameProvider(int maxCachedNames) {
+    this.names = new SpanNameCache(maxCachedNames);
+  }
+
   @Override
   public String generateName(CommandStartedEvent event) {
     if (event == null || event.getCommand() == null) {
@@ -27,8 +44,13 @@ public class OperationCollectionSpanNameProvider extends NoopSpanNameProvider {
     final BsonDocument cmd = event.getCommand();
     BsonValue firstKey = cmd.get(cmd.getFirstKey());
     if (firstKey.isString()) {
+      String operationName = super.generateName(event);
       String collectionName = firstKey.asString().getValue();
-      return super.generateName(event) + " " + collectionName;
+      String name = names.get(operationName, collectionName);
+      if (name == null) {
+        name = names.put(operationName, collectionName, operationName + " " + collectionName);
+      }
+      return name == null ? operationName : name;
     } else {
       return super.generateName(event);
     }
@@ -15,18 +15,37 @@ package io.opentracing.contrib.mongo.common.providers;
 
 import com.mongodb.event.CommandStartedEvent;
 
+/**
+ * Names spans after the command with a prefix, e.g. {@code mongo.insert}. Names are cached, up to a
+ * maximum number of names beyond which they are concatenated for each command.
+ */
 public class PrefixSpanNameProvider implements MongoSpanNameProvider {
 
   private final String prefix;
+  private final SpanNameCache names;
 
   public PrefixSpanNameProvider(String prefix) {
+    this(prefix, SpanNameCache.DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * @param maxCachedNames maximum number of command names
+   */
+  public PrefixSpanNameProvider(String prefix, int maxCachedNames) {
     this.prefix = prefix;
+    this.names = new SpanNameCache(maxCachedNames);
   }
 
   @Override
   public String generateName(CommandStartedEvent event) {
     final String operationName = event != null && event.getCommandName() != null ?
         event.getCommandName() : NO_OPERATION;
-    return ((prefix == null) ? "" : prefix) + operationName;
+    String name = names.get(operationName, null);
+    if (name == null) {
+      name = ((prefix == null) ? "" : prefix) + operationName;
+      String cached = names.put(operationName, null, name);
+      return cached == null ? name : cached;
+    }
+    return name;
   }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common.providers;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded cache of span names by command name and collection. Names are looked up without
+ * allocating, so a hit costs two hash lookups instead of a concatenation. Once the cache is full,
+ * no more names are cached, so a collection name built at runtime can't grow it without bound.
+ */
+final class SpanNameCache {
+  static final int DEFAULT_MAX_SIZE = 1000;
+
+  private static final String NO_COLLECTION = "";
+
+  private final ConcurrentMap<String, ConcurrentMap<String, String>> names =
+      new ConcurrentHashMap<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final int maxSize;
+
+  SpanNameCache(int maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("maxSize must not be negative");
+    }
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @param collection may be {@code null}
+   * @return the cached name or {@code null}
+   */
+  String get(String commandName, String collection) {
+    ConcurrentMap<String, String> namesByCollection = names.get(commandName);
+    return namesByCollection == null ? null
+        : namesByCollection.get(collection == null ? NO_COLLECTION : collection);
+  }
+
+  /**
+   * @param collection may be {@code null}
+   * @return the cached name, which may have been cached concurrently, or {@code null} if the cache
+   * is full
+   */
+  String put(String commandName, String collection, String name) {
+    if (size.get() >= maxSize) {
+      return null;
+    }
+    ConcurrentMap<String, String> namesByCollection = names.get(commandName);
+    if (namesByCollection == null) {
+      namesByCollection = new ConcurrentHashMap<>();
+      ConcurrentMap<String, String> existing = names.putIfAbsent(commandName, namesByCollection);
+      if (existing != null) {
+        namesByCollection = existing;
+      }
+    }
+    if (size.incrementAndGet() > maxSize) {
+      size.decrementAndGet();
+      return null;
+    }
+    String existing = namesByCollection
+        .putIfAbsent(collection == null ? NO_COLLECTION : collection, name);
+    if (existing != null) {
+      size.decrementAndGet();
+      return existing;
+    }
+    return name;
+  }
+
+  int size() {
+    return size.get();
+  }
+}
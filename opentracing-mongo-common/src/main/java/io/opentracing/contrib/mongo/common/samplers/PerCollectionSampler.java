@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common.samplers;
+
+import com.mongodb.event.CommandStartedEvent;
+import io.opentracing.contrib.mongo.common.CommandNames;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Delegates to the sampler configured for the collection of the command. The collection is the
+ * value of the first key, or of the {@code collection} key for {@code getMore}.
+ */
+public class PerCollectionSampler implements CommandSampler {
+
+  private final Map<String, CommandSampler> samplers;
+  private final CommandSampler defaultSampler;
+
+  public PerCollectionSampler(Map<String, CommandSampler> samplers,
+      CommandSampler defaultSampler) {
+    this.samplers = new HashMap<>(samplers);
+    this.defaultSampler = defaultSampler;
+  }
+
+  @Override
+  public boolean isSampled(CommandStartedEvent event) {
+    String collection = CommandNames.collection(event.getCommand(), event.getCommandName());
+    CommandSampler sampler = collection == null ? null : samplers.get(collection);
+    return (sampler == null ? defaultSampler : sampler).isSampled(event);
+  }
+}
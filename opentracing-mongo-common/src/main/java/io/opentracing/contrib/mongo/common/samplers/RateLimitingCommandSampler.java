@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common.samplers;
+
+import com.mongodb.event.CommandStartedEvent;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Samples at most the given number of commands per second, allowing bursts of up to one second
+ * worth of commands. Lock-free implementation of the generic cell rate algorithm.
+ */
+public class RateLimitingCommandSampler implements CommandSampler {
+
+  private final long intervalNanos;
+  private final long burstNanos;
+  /**
+   * Theoretical arrival time of the next sampled command
+   */
+  private final AtomicLong nextArrivalNanos;
+
+  public RateLimitingCommandSampler(double maxCommandsPerSecond) {
+    if (maxCommandsPerSecond <= 0) {
+      throw new IllegalArgumentException("maxCommandsPerSecond must be positive");
+    }
+    this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / maxCommandsPerSecond));
+    this.burstNanos = Math.max(intervalNanos, TimeUnit.SECONDS.toNanos(1));
+    this.nextArrivalNanos = new AtomicLong(System.nanoTime() - burstNanos);
+  }
+
+  @Override
+  public boolean isSampled(CommandStartedEvent event) {
+    long now = System.nanoTime();
+    while (true) {
+      long nextArrival = nextArrivalNanos.get();
+      long updated = Math.max(nextArrival - now, 0) + now + intervalNanos;
+      if (updated - now > burstNanos) {
+        return false;
+      }
+      if (nextArrivalNanos.compareAndSet(nextArrival, updated)) {
+        return true;
+      }
+    }
+  }
+}
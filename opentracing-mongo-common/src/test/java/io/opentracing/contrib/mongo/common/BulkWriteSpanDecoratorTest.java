@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import java.util.Collections;
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.junit.Test;
+
+public class BulkWriteSpanDecoratorTest {
+
+  private final ConnectionDescription connectionDescription = new ConnectionDescription(
+      new ServerId(new ClusterId(), new ServerAddress()));
+  private final MockTracer tracer = new MockTracer();
+
+  @Test
+  public void testInsertSummarized() {
+    BsonArray documents = new BsonArray();
+    for (int i = 0; i < 3; i++) {
+      RawBsonDocument document = new RawBsonDocument(new BsonDocument("_id", new BsonInt32(i)),
+          new BsonDocumentCodec());
+      documents.add(document);
+    }
+    BsonDocument command = new BsonDocument("insert", new BsonString("users"))
+        .append("ordered", BsonBoolean.FALSE)
+        .append("documents", documents);
+    MockSpan span = tracer.buildSpan("insert").start();
+
+    SpanDecorator.BULK_WRITE.commandStarted(new CommandStartedEvent(1, connectionDescription,
+        "db", "insert", command), span);
+    SpanDecorator.BULK_WRITE.commandSucceeded(new CommandSucceededEvent(1, connectionDescription,
+        "insert", new BsonDocument("n", new BsonInt32(2))
+        .append("writeErrors", new BsonArray(Collections.singletonList(
+            new BsonDocument("index", new BsonInt32(1)))))
+        .append("ok", new BsonInt32(1)), 1), span);
+
+    assertEquals(3, span.tags().get(BulkWriteSpanDecorator.DOCUMENTS_TAG));
+    assertEquals(false, span.tags().get(BulkWriteSpanDecorator.ORDERED_TAG));
+    assertEquals(2, span.tags().get(BulkWriteSpanDecorator.N_TAG));
+    assertEquals(1, span.tags().get(BulkWriteSpanDecorator.WRITE_ERRORS_TAG));
+  }
+
+  @Test
+  public void testOrderedByDefault() {
+    BsonDocument command = new BsonDocument("update", new BsonString("users"))
+        .append("updates", new BsonArray(Collections.singletonList(
+            new BsonDocument("q", new BsonDocument()))));
+    MockSpan span = tracer.buildSpan("update").start();
+
+    SpanDecorator.BULK_WRITE.commandStarted(new CommandStartedEvent(1, connectionDescription,
+        "db", "update", command), span);
+
+    assertEquals(1, span.tags().get(BulkWriteSpanDecorator.DOCUMENTS_TAG));
+    assertEquals(true, span.tags().get(BulkWriteSpanDecorator.ORDERED_TAG));
+  }
+
+  @Test
+  public void testOtherCommandsIgnored() {
+    MockSpan span = tracer.buildSpan("find").start();
+    SpanDecorator.BULK_WRITE.commandStarted(new CommandStartedEvent(1, connectionDescription,
+        "db", "find", new BsonDocument("find", new BsonString("users"))), span);
+    assertTrue(span.tags().isEmpty());
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.opentracing.Span;
+import java.util.Arrays;
+import java.util.Collections;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.junit.Test;
+
+public class DecoratorRoutesTest {
+
+  private static final SpanDecorator STATEMENT = new NoopDecorator();
+  private static final SpanDecorator REPLY = new NoopDecorator();
+
+  private final DecoratorRoutes routes = new DecoratorRoutes(
+      Collections.singletonList(SpanDecorator.DEFAULT), Arrays.asList(
+      new DecoratorRoutes.Route(null, "payments", null,
+          Arrays.asList(SpanDecorator.DEFAULT, STATEMENT)),
+      new DecoratorRoutes.Route("shop", null, "insert", Collections.singletonList(REPLY))));
+
+  @Test
+  public void testNoRoutes() {
+    DecoratorRoutes none = new DecoratorRoutes(Collections.singletonList(SpanDecorator.DEFAULT),
+        Collections.<DecoratorRoutes.Route>emptyList());
+    assertSame(none.defaults(), none.decorators(
+        event("shop", new BsonDocument("find", new BsonString("payments")))));
+  }
+
+  @Test
+  public void testUnmatchedCommandGetsDefaults() {
+    assertSame(routes.defaults(), routes.decorators(
+        event("shop", new BsonDocument("find", new BsonString("cache")))));
+  }
+
+  @Test
+  public void testCollectionRoute() {
+    assertArrayEquals(new SpanDecorator[]{SpanDecorator.DEFAULT, STATEMENT}, routes.decorators(
+        event("other", new BsonDocument("find", new BsonString("payments")))));
+    assertArrayEquals(new SpanDecorator[]{SpanDecorator.DEFAULT, STATEMENT}, routes.decorators(
+        event("other", new BsonDocument("getMore", new BsonInt64(1))
+            .append("collection", new BsonString("payments")))));
+  }
+
+  @Test
+  public void testMatchingRoutesCombined() {
+    assertArrayEquals(new SpanDecorator[]{SpanDecorator.DEFAULT, STATEMENT, REPLY},
+        routes.decorators(event("shop", new BsonDocument("insert", new BsonString("payments")))));
+    assertArrayEquals(new SpanDecorator[]{SpanDecorator.DEFAULT, REPLY},
+        routes.decorators(event("shop", new BsonDocument("insert", new BsonString("cache")))));
+  }
+
+  @Test
+  public void testResolvedDecoratorsCached() {
+    CommandStartedEvent event = event("shop", new BsonDocument("find", new BsonString("payments")));
+    assertSame(routes.decorators(event), routes.decorators(event));
+  }
+
+  private static CommandStartedEvent event(String database, BsonDocument command) {
+    return new CommandStartedEvent(1,
+        new ConnectionDescription(new ServerId(new ClusterId(), new ServerAddress())),
+        database, command.getFirstKey(), command);
+  }
+
+  private static final class NoopDecorator implements SpanDecorator {
+    @Override
+    public void commandStarted(CommandStartedEvent event, Span span) {
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event, Span span) {
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event, Span span) {
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandStartedEvent;
+import java.util.Arrays;
+import java.util.Collections;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.junit.Test;
+
+public class ExcludedCommandMatcherTest {
+
+  private final ExcludedCommandMatcher matcher;
+
+  public ExcludedCommandMatcherTest() {
+    ExcludedCommand oplogGetMore = new ExcludedCommand();
+    oplogGetMore.put("getMore", BsonNull.VALUE);
+    oplogGetMore.put("collection", new BsonString("oplog.rs"));
+    matcher = new ExcludedCommandMatcher(Arrays.asList(
+        new ExcludedCommand("insert", new BsonString("testCol")),
+        new ExcludedCommand("find", BsonNull.VALUE),
+        oplogGetMore));
+  }
+
+  @Test
+  public void testAnyValue() {
+    assertTrue(matcher.isExcluded(event(new BsonDocument("find", new BsonString("any")))));
+  }
+
+  @Test
+  public void testValue() {
+    assertTrue(matcher.isExcluded(event(new BsonDocument("insert", new BsonString("testCol")))));
+    assertFalse(matcher.isExcluded(event(new BsonDocument("insert", new BsonString("other")))));
+  }
+
+  @Test
+  public void testAllKeysRequired() {
+    assertTrue(matcher.isExcluded(event(new BsonDocument("getMore", new BsonInt64(1))
+        .append("collection", new BsonString("oplog.rs")))));
+    assertFalse(matcher.isExcluded(event(new BsonDocument("getMore", new BsonInt64(1))
+        .append("collection", new BsonString("testCol")))));
+    assertFalse(matcher.isExcluded(event(new BsonDocument("getMore", new BsonInt64(1)))));
+  }
+
+  @Test
+  public void testOtherCommand() {
+    assertFalse(matcher.isExcluded(event(new BsonDocument("update", new BsonString("testCol")))));
+  }
+
+  @Test
+  public void testFirstKeyNotCommandName() {
+    ExcludedCommandMatcher byField = new ExcludedCommandMatcher(Arrays.asList(
+        new ExcludedCommand("collection", new BsonString("oplog.rs")),
+        new ExcludedCommand("$db", new BsonString("admin"))));
+    assertTrue(byField.isExcluded(event(new BsonDocument("getMore", new BsonInt64(1))
+        .append("collection", new BsonString("oplog.rs")))));
+    assertTrue(byField.isExcluded(event(new BsonDocument("ping", new BsonInt64(1))
+        .append("$db", new BsonString("admin")))));
+    assertFalse(byField.isExcluded(event(new BsonDocument("find", new BsonString("testCol"))
+        .append("$db", new BsonString("test")))));
+  }
+
+  @Test
+  public void testAnyCommandNameIndexed() {
+    ExcludedCommandMatcher byName = new ExcludedCommandMatcher(Arrays.asList(
+        new ExcludedCommand("customCommand", BsonNull.VALUE),
+        new ExcludedCommand("filter", BsonNull.VALUE)));
+    assertTrue(byName.isExcluded(event(new BsonDocument("customCommand", new BsonInt64(1)))));
+    assertFalse(byName.isExcluded(event(new BsonDocument("find", new BsonString("testCol"))
+        .append("filter", new BsonDocument()))));
+  }
+
+  @Test
+  public void testEmptyExcludedCommandExcludesAll() {
+    ExcludedCommandMatcher all = new ExcludedCommandMatcher(
+        Collections.singletonList(new ExcludedCommand()));
+    assertTrue(all.isExcluded(event(new BsonDocument("update", new BsonString("testCol")))));
+  }
+
+  private static CommandStartedEvent event(BsonDocument command) {
+    return new CommandStartedEvent(1,
+        new ConnectionDescription(new ServerId(new ClusterId(), new ServerAddress())),
+        "databaseName", command.getFirstKey(), command);
+  }
+}
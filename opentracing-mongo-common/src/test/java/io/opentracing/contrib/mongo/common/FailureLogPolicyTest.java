@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.ServerAddress;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Map;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.junit.Test;
+
+public class FailureLogPolicyTest {
+
+  @Test
+  public void testDefaultRendersFullStack() {
+    Exception exception = new RuntimeException("failed", new IllegalStateException());
+    StringWriter sw = new StringWriter();
+    exception.printStackTrace(new PrintWriter(sw));
+
+    Map<String, Object> errorLogs = FailureLogPolicy.DEFAULT.errorLogs(exception);
+    assertEquals(sw.toString(), errorLogs.get("stack"));
+    assertEquals("failed", errorLogs.get("message"));
+    assertSame(exception, errorLogs.get("error.object"));
+  }
+
+  @Test
+  public void testCommandErrorCodesOnly() {
+    FailureLogPolicy policy = new FailureLogPolicy.Builder().withCommandErrorCodesOnly().build();
+    MongoCommandException exception = new MongoCommandException(
+        new BsonDocument("ok", new BsonInt32(0))
+            .append("errmsg", new BsonString("not master"))
+            .append("code", new BsonInt32(10107))
+            .append("codeName", new BsonString("NotMaster")),
+        new ServerAddress());
+
+    Map<String, Object> errorLogs = policy.errorLogs(exception);
+    assertEquals(10107, errorLogs.get(FailureLogPolicy.ERROR_CODE));
+    assertEquals("NotMaster", errorLogs.get(FailureLogPolicy.ERROR_CODE_NAME));
+    assertFalse(errorLogs.containsKey("stack"));
+    assertNotNull(policy.errorLogs(new RuntimeException()).get("stack"));
+  }
+
+  @Test
+  public void testMaxStackDepth() {
+    FailureLogPolicy policy = new FailureLogPolicy.Builder().withMaxStackDepth(1).build();
+    Exception exception = new RuntimeException("failed", new IllegalStateException());
+
+    String stack = (String) policy.errorLogs(exception).get("stack");
+    String[] lines = stack.split(System.lineSeparator());
+    assertEquals(6, lines.length);
+    assertEquals(exception.toString(), lines[0]);
+    assertTrue(lines[1].startsWith("\tat "));
+    assertTrue(lines[2].endsWith(" more"));
+    assertEquals("Caused by: " + exception.getCause(), lines[3]);
+  }
+
+  @Test
+  public void testIdenticalStacksRenderedOnce() {
+    FailureLogPolicy policy = new FailureLogPolicy.Builder().withStackCache().build();
+    Object first = null;
+    for (int i = 0; i < 2; i++) {
+      Object stack = policy.errorLogs(new RuntimeException("failed")).get("stack");
+      if (first == null) {
+        first = stack;
+      }
+      assertSame(first, stack);
+    }
+  }
+
+  @Test
+  public void testMaxStacksPerSecond() {
+    FailureLogPolicy policy = new FailureLogPolicy.Builder().withMaxStacksPerSecond(1).build();
+    assertTrue(policy.errorLogs(new RuntimeException()).containsKey("stack"));
+    Map<String, Object> errorLogs = policy.errorLogs(new RuntimeException());
+    assertFalse(errorLogs.containsKey("stack"));
+    assertEquals(RuntimeException.class.getName(), errorLogs.get("error.kind"));
+  }
+}
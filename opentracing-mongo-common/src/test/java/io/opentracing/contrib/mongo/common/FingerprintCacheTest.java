@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class FingerprintCacheTest {
+
+  @Test
+  public void testUnreferencedEntryEvicted() {
+    FingerprintCache<String> cache = new FingerprintCache<>(2);
+    cache.put(1, "first");
+    cache.put(2, "second");
+    cache.get(1);
+    cache.put(3, "third");
+    assertEquals(2, cache.size());
+    assertEquals("first", cache.get(1));
+    assertNull(cache.get(2));
+    assertEquals("third", cache.get(3));
+  }
+
+  @Test
+  public void testBoundedUnderConcurrentPuts() throws InterruptedException {
+    final FingerprintCache<String> cache = new FingerprintCache<>(64);
+    final AtomicInteger mismatches = new AtomicInteger();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      final int offset = t * 1000;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 10_000; i++) {
+            long fingerprint = offset + i % 200;
+            String value = cache.get(fingerprint);
+            if (value == null) {
+              cache.put(fingerprint, String.valueOf(fingerprint));
+            } else if (!value.equals(String.valueOf(fingerprint))) {
+              mismatches.incrementAndGet();
+            }
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(0, mismatches.get());
+    assertTrue(cache.size() <= 64);
+  }
+}
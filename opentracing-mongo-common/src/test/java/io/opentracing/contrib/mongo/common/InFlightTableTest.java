@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class InFlightTableTest {
+
+  @Test
+  public void testPutRemove() {
+    InFlightTable<String> table = new InFlightTable<>(16);
+    table.put(1, "one", 0, null);
+    table.put(2, "two", 0, null);
+    assertEquals("one", table.remove(1));
+    assertNull(table.remove(1));
+    assertEquals("two", table.remove(2));
+  }
+
+  @Test
+  public void testCollidingKeys() {
+    InFlightTable<String> table = new InFlightTable<>(16);
+    table.put(1, "one", 0, null);
+    table.put(17, "seventeen", 0, null);
+    table.put(33, "thirty-three", 0, null);
+    assertEquals("seventeen", table.remove(17));
+    assertEquals("one", table.remove(1));
+    assertEquals("thirty-three", table.remove(33));
+  }
+
+  @Test
+  public void testStartNanos() {
+    InFlightTable<Integer> table = new InFlightTable<>(4);
+    for (int i = 0; i < 10; i++) {
+      table.put(i, i, 100 + i, null);
+    }
+    assertEquals(100, table.startNanos(0, -1));
+    assertEquals(109, table.startNanos(9, -1));
+    assertEquals(-1, table.startNanos(10, -1));
+    table.remove(0);
+    assertEquals(-1, table.startNanos(0, -1));
+  }
+
+  @Test
+  public void testOverflow() {
+    InFlightTable<Integer> table = new InFlightTable<>(4);
+    for (int i = 0; i < 100; i++) {
+      table.put(i, i, 0, null);
+    }
+    for (int i = 99; i >= 0; i--) {
+      assertEquals(Integer.valueOf(i), table.remove(i));
+    }
+    assertNull(table.remove(0));
+  }
+
+  @Test
+  public void testNegativeKeys() {
+    InFlightTable<String> table = new InFlightTable<>(16);
+    table.put(Integer.MIN_VALUE, "min", 0, null);
+    table.put(-1, "minus one", 0, null);
+    assertEquals("min", table.remove(Integer.MIN_VALUE));
+    assertEquals("minus one", table.remove(-1));
+  }
+
+  @Test
+  public void testConcurrentAccess() throws Exception {
+    final InFlightTable<Integer> table = new InFlightTable<>(64);
+    final AtomicInteger requestIds = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int thread = 0; thread < 8; thread++) {
+      futures.add(executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          int missing = 0;
+          for (int i = 0; i < 10_000; i++) {
+            int requestId = requestIds.incrementAndGet();
+            table.put(requestId, requestId, 0, null);
+            Integer value = table.remove(requestId);
+            if (value == null || value != requestId) {
+              missing++;
+            }
+          }
+          return missing;
+        }
+      }));
+    }
+    for (Future<Integer> future : futures) {
+      assertEquals(Integer.valueOf(0), future.get());
+    }
+    executor.shutdown();
+  }
+
+  @Test
+  public void testConcurrentRemoveAndEvict() throws Exception {
+    final InFlightTable<Integer> table = new InFlightTable<>(16);
+    final AtomicInteger requestIds = new AtomicInteger();
+    final AtomicInteger running = new AtomicInteger(4);
+    final InFlightTable.EntryFilter abandoned = new InFlightTable.EntryFilter() {
+      @Override
+      public boolean shouldEvict(long startNanos, Object owner) {
+        return "abandoned".equals(owner);
+      }
+    };
+    final InFlightTable.Evictor<Integer> ignore = new InFlightTable.Evictor<Integer>() {
+      @Override
+      public void evicted(Integer value) {
+      }
+    };
+    ExecutorService executor = Executors.newFixedThreadPool(5);
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int thread = 0; thread < 4; thread++) {
+      futures.add(executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          int missing = 0;
+          for (int i = 0; i < 50_000; i++) {
+            int requestId = requestIds.incrementAndGet();
+            table.put(requestId, requestId, 0, i % 4 == 0 ? "abandoned" : "live");
+            if (i % 4 != 0) {
+              Integer value = table.remove(requestId);
+              if (value == null || value != requestId) {
+                missing++;
+              }
+            }
+          }
+          running.decrementAndGet();
+          return missing;
+        }
+      }));
+    }
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        while (running.get() > 0) {
+          table.evictIf(abandoned, ignore);
+        }
+      }
+    });
+    for (Future<Integer> future : futures) {
+      assertEquals(Integer.valueOf(0), future.get());
+    }
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+    table.evictIf(abandoned, ignore);
+    assertEquals(0, table.size());
+  }
+
+  @Test
+  public void testEvictIf() {
+    InFlightTable<String> table = new InFlightTable<>(4);
+    for (int i = 0; i < 10; i++) {
+      table.put(i, String.valueOf(i), i, i % 2 == 0 ? "even" : "odd");
+    }
+    final List<String> evicted = new ArrayList<>();
+    table.evictIf(new InFlightTable.EntryFilter() {
+      @Override
+      public boolean shouldEvict(long startNanos, Object owner) {
+        return "even".equals(owner) || startNanos >= 9;
+      }
+    }, new InFlightTable.Evictor<String>() {
+      @Override
+      public void evicted(String value) {
+        evicted.add(value);
+      }
+    });
+    Collections.sort(evicted);
+    assertEquals(Arrays.asList("0", "2", "4", "6", "8", "9"), evicted);
+    assertEquals(4, table.size());
+    assertNull(table.remove(0));
+    assertEquals("1", table.remove(1));
+    assertEquals(3, table.size());
+  }
+}
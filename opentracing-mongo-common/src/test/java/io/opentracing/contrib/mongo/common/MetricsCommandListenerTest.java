@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.opentracing.contrib.mongo.common.metrics.CommandMetrics;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.junit.Test;
+
+public class MetricsCommandListenerTest {
+
+  private final ConnectionDescription connectionDescription = new ConnectionDescription(
+      new ServerId(new ClusterId(), new ServerAddress()));
+
+  @Test
+  public void testLatencyAndFailuresRecordedPerSeries() {
+    MetricsCommandListener listener = new MetricsCommandListener();
+    listener.commandStarted(startedEvent(1, "find", "users"));
+    listener.commandStarted(startedEvent(2, "find", "users"));
+    listener.commandStarted(startedEvent(3, "insert", "users"));
+    listener.commandSucceeded(succeededEvent(1, "find", 2));
+    listener.commandFailed(new CommandFailedEvent(2, connectionDescription, "find",
+        TimeUnit.MILLISECONDS.toNanos(4), new RuntimeException()));
+    listener.commandSucceeded(succeededEvent(3, "insert", 1));
+
+    List<CommandMetrics> metrics = new ArrayList<>(listener.getMetrics());
+    assertEquals(2, metrics.size());
+    CommandMetrics find = metrics.get(0).getCommandName().equals("find")
+        ? metrics.get(0) : metrics.get(1);
+    assertEquals("db", find.getDatabase());
+    assertEquals("users", find.getCollection());
+    assertEquals(new ServerAddress().toString(), find.getServer());
+    assertEquals(2, find.getLatency().getCount());
+    assertEquals(4000, find.getLatency().getMaxMicros());
+    assertEquals(1, find.getFailures());
+  }
+
+  @Test
+  public void testSeriesBeyondCapRecordedInOverflow() {
+    MetricsCommandListener listener = new MetricsCommandListener.Builder()
+        .withMaxSeries(1)
+        .build();
+    listener.commandStarted(startedEvent(1, "find", "users"));
+    listener.commandStarted(startedEvent(2, "find", "orders"));
+    listener.commandStarted(startedEvent(3, "find", "items"));
+    listener.commandSucceeded(succeededEvent(1, "find", 1));
+    listener.commandSucceeded(succeededEvent(2, "find", 1));
+    listener.commandSucceeded(succeededEvent(3, "find", 1));
+
+    List<CommandMetrics> metrics = new ArrayList<>(listener.getMetrics());
+    assertEquals(2, metrics.size());
+    CommandMetrics overflow = metrics.get(1);
+    assertNull(overflow.getCommandName());
+    assertEquals(2, overflow.getLatency().getCount());
+  }
+
+  private CommandStartedEvent startedEvent(int requestId, String commandName, String collection) {
+    return new CommandStartedEvent(requestId, connectionDescription, "db", commandName,
+        new BsonDocument(commandName, new BsonString(collection)));
+  }
+
+  private CommandSucceededEvent succeededEvent(int requestId, String commandName, long millis) {
+    return new CommandSucceededEvent(requestId, connectionDescription, commandName,
+        new BsonDocument(), TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class OverheadGovernorTest {
+
+  private static final long WINDOW = 1000;
+
+  @Test
+  public void testDegradesOneStepPerWindowOverBudget() {
+    OverheadGovernor governor = new OverheadGovernor(0.1, WINDOW, 0);
+    // 1 of 16 events is timed, so 10 units are scaled to 160
+    governor.record(1000, 1010);
+    assertEquals(TracingLevel.NO_STATEMENTS, governor.level());
+    assertEquals(0.16, governor.overhead(), 0.01);
+
+    governor.record(2010, 2020);
+    assertEquals(TracingLevel.NO_DECORATORS, governor.level());
+    governor.record(3020, 3030);
+    governor.record(4030, 4040);
+    assertEquals(TracingLevel.SAMPLED, governor.level());
+  }
+
+  @Test
+  public void testRestoresBelowHalfOfBudget() {
+    OverheadGovernor governor = new OverheadGovernor(0.1, WINDOW, 0);
+    governor.record(1000, 1010);
+    assertEquals(TracingLevel.NO_STATEMENTS, governor.level());
+
+    // 0.08 is within budget, the level is kept
+    governor.record(2005, 2010);
+    assertEquals(TracingLevel.NO_STATEMENTS, governor.level());
+
+    governor.record(3009, 3010);
+    assertEquals(TracingLevel.FULL, governor.level());
+  }
+
+  @Test
+  public void testOnlyWindowEndAdjustsLevel() {
+    OverheadGovernor governor = new OverheadGovernor(0.1, WINDOW, 0);
+    governor.record(100, 900);
+    assertEquals(TracingLevel.FULL, governor.level());
+  }
+
+  @Test
+  public void testTimedAndSampledIndependently() {
+    int timed = 0;
+    int sampled = 0;
+    int timedAndSampled = 0;
+    for (int requestId = 1; requestId <= 4096; requestId++) {
+      boolean isTimed = OverheadGovernor.isTimed(requestId);
+      boolean isSampled = OverheadGovernor.isSampled(requestId);
+      timed += isTimed ? 1 : 0;
+      sampled += isSampled ? 1 : 0;
+      timedAndSampled += isTimed && isSampled ? 1 : 0;
+    }
+    assertEquals(4096 / OverheadGovernor.TIMED_RATE, timed);
+    assertEquals(4096 / OverheadGovernor.SAMPLING_RATE, sampled);
+    assertEquals(timed / OverheadGovernor.SAMPLING_RATE, timedAndSampled);
+    assertTrue(OverheadGovernor.isTimed(32));
+    assertFalse(OverheadGovernor.isTimed(33));
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandSucceededEvent;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.junit.Test;
+
+public class ReplySpanDecoratorTest {
+
+  private final ConnectionDescription connectionDescription = new ConnectionDescription(
+      new ServerId(new ClusterId(), new ServerAddress()));
+  private final MockTracer tracer = new MockTracer();
+
+  @Test
+  public void testFindReply() {
+    MockSpan span = decorate(SpanDecorator.REPLY, raw(findReply(42, 3)));
+
+    assertEquals(1.0, span.tags().get(ReplySpanDecorator.OK_TAG));
+    assertEquals(3, span.tags().get(ReplySpanDecorator.N_RETURNED_TAG));
+    assertEquals(Boolean.TRUE, span.tags().get(ReplySpanDecorator.CURSOR_OPEN_TAG));
+    assertEquals(new BsonTimestamp(5, 7).getValue(),
+        span.tags().get(ReplySpanDecorator.CLUSTER_TIME_TAG));
+  }
+
+  @Test
+  public void testDecodedReply() {
+    MockSpan span = decorate(SpanDecorator.REPLY, findReply(0, 2));
+
+    assertEquals(2, span.tags().get(ReplySpanDecorator.N_RETURNED_TAG));
+    assertEquals(Boolean.FALSE, span.tags().get(ReplySpanDecorator.CURSOR_OPEN_TAG));
+  }
+
+  @Test
+  public void testOnlySelectedFields() {
+    MockSpan span = decorate(new ReplySpanDecorator(ReplySpanDecorator.Field.CURSOR_OPEN),
+        raw(findReply(42, 3)));
+
+    assertEquals(1, span.tags().size());
+    assertTrue(span.tags().containsKey(ReplySpanDecorator.CURSOR_OPEN_TAG));
+  }
+
+  @Test
+  public void testWriteConcernError() {
+    BsonDocument reply = new BsonDocument("n", new BsonInt32(1))
+        .append("writeConcernError", new BsonDocument("errmsg", new BsonString("timeout"))
+            .append("code", new BsonInt32(64)))
+        .append("ok", new BsonInt32(1));
+    MockSpan span = decorate(new ReplySpanDecorator(ReplySpanDecorator.Field.WRITE_CONCERN_ERROR,
+        ReplySpanDecorator.Field.OK), raw(reply));
+
+    assertEquals(64, span.tags().get(ReplySpanDecorator.WRITE_CONCERN_ERROR_TAG));
+    assertEquals(1, span.tags().get(ReplySpanDecorator.OK_TAG));
+    assertFalse(span.tags().containsKey(ReplySpanDecorator.N_RETURNED_TAG));
+  }
+
+  private MockSpan decorate(SpanDecorator decorator, BsonDocument reply) {
+    MockSpan span = tracer.buildSpan("find").start();
+    decorator.commandSucceeded(new CommandSucceededEvent(1, connectionDescription, "find", reply,
+        1), span);
+    return span;
+  }
+
+  private static BsonDocument findReply(long cursorId, int documents) {
+    BsonArray batch = new BsonArray();
+    for (int i = 0; i < documents; i++) {
+      batch.add(new BsonDocument("_id", new BsonInt32(i))
+          .append("nested", new BsonDocument("value", new BsonInt32(i))));
+    }
+    return new BsonDocument("cursor", new BsonDocument("firstBatch", batch)
+        .append("id", new BsonInt64(cursorId))
+        .append("ns", new BsonString("db.users")))
+        .append("ok", new BsonDouble(1))
+        .append("$clusterTime", new BsonDocument("clusterTime", new BsonTimestamp(5, 7))
+            .append("signature", new BsonDocument("keyId", new BsonInt64(0))));
+  }
+
+  private static RawBsonDocument raw(BsonDocument document) {
+    return new RawBsonDocument(document, new BsonDocumentCodec());
+  }
+}
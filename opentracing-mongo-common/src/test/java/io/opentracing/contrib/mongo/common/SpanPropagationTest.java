@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.mock.MockTracer;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class SpanPropagationTest {
+
+  private final MockTracer tracer = new MockTracer();
+  private final SpanPropagation propagation = new SpanPropagation(tracer,
+      Collections.<Class<?>>singletonList(Callback.class),
+      Collections.singletonList(SpanPropagationTest.class.getPackage().getName()));
+
+  @Test
+  public void testSpanActivatedInCallbackOnOtherThread() throws InterruptedException {
+    Database database = propagation.wrap(Database.class, new DatabaseImpl());
+    final AtomicReference<Span> callbackSpan = new AtomicReference<>();
+    Span parent = tracer.buildSpan("parent").start();
+    Thread thread;
+    try (Scope scope = tracer.activateSpan(parent)) {
+      thread = database.getCollection().find(new Callback() {
+        @Override
+        public void onResult() {
+          callbackSpan.set(tracer.activeSpan());
+        }
+      });
+    }
+    thread.join();
+    assertSame(parent, callbackSpan.get());
+    assertNull(tracer.activeSpan());
+  }
+
+  @Test
+  public void testSpanOfCreationNotCarried() throws InterruptedException {
+    DatabaseImpl delegate = new DatabaseImpl();
+    final AtomicReference<Span> callbackSpan = new AtomicReference<>();
+    Span parent = tracer.buildSpan("parent").start();
+    Collection collection;
+    try (Scope scope = tracer.activateSpan(parent)) {
+      collection = propagation.wrap(Database.class, delegate).getCollection();
+    }
+    collection.find(new Callback() {
+      @Override
+      public void onResult() {
+        callbackSpan.set(tracer.activeSpan());
+      }
+    }).join();
+    assertNull(delegate.collection.submissionSpan);
+    assertNull(callbackSpan.get());
+  }
+
+  public interface Database {
+    Collection getCollection();
+  }
+
+  public interface Collection {
+    Thread find(Callback callback);
+  }
+
+  public interface Callback {
+    void onResult();
+  }
+
+  private class DatabaseImpl implements Database {
+    private final CollectionImpl collection = new CollectionImpl();
+
+    @Override
+    public Collection getCollection() {
+      return collection;
+    }
+  }
+
+  private class CollectionImpl implements Collection {
+    private Span submissionSpan;
+
+    @Override
+    public Thread find(final Callback callback) {
+      submissionSpan = tracer.activeSpan();
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          if (callback != null) {
+            callback.onResult();
+          }
+        }
+      });
+      thread.start();
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class StatementRendererTest {
+
+  private final BsonDocument insert = new BsonDocument("insert", new BsonString("collection"))
+      .append("ordered", new BsonInt32(1))
+      .append("documents", new BsonArray(Collections.nCopies(1000,
+          new BsonDocument("name", new BsonString("value")))));
+
+  @Test
+  public void testDefaultMatchesToString() {
+    assertEquals(insert.toString(), StatementRenderer.DEFAULT.render(insert));
+  }
+
+  @Test
+  public void testMaxLength() {
+    String statement = new StatementRenderer.Builder().withMaxLength(20).build().render(insert);
+    assertEquals(insert.toString().substring(0, 20) + StatementRenderer.TRUNCATION_MARKER,
+        statement);
+  }
+
+  @Test
+  public void testShortStatementNotTruncated() {
+    BsonDocument find = new BsonDocument("find", new BsonString("collection"));
+    assertEquals(find.toString(),
+        new StatementRenderer.Builder().withMaxLength(1024).build().render(find));
+  }
+
+  @Test
+  public void testBulkPayloadsOmitted() {
+    String statement = new StatementRenderer.Builder().withBulkPayloadsOmitted().build()
+        .render(insert);
+    assertEquals("{\"insert\": \"collection\", \"ordered\": 1, \"documents\": "
+        + "{\"$omitted\": 1000}}", statement);
+  }
+
+  @Test
+  public void testBufferReuse() {
+    StatementRenderer renderer = new StatementRenderer.Builder().withMaxLength(10).build();
+    assertTrue(renderer.render(insert).endsWith(StatementRenderer.TRUNCATION_MARKER));
+    assertEquals(insert.toString(), StatementRenderer.DEFAULT.render(insert));
+  }
+
+  @Test
+  public void testObfuscatedLiterals() {
+    StatementRenderer renderer = new StatementRenderer.Builder().withObfuscatedLiterals().build();
+    BsonDocument find = new BsonDocument("find", new BsonString("collection"))
+        .append("filter", new BsonDocument("name", new BsonString("value"))
+            .append("age", new BsonDocument("$in", new BsonArray(Arrays.<BsonValue>asList(
+                new BsonInt32(1), new BsonInt32(2))))))
+        .append("$db", new BsonString("database"));
+    assertEquals("{\"find\": \"collection\", \"filter\": {\"name\": \"?\", "
+        + "\"age\": {\"$in\": \"?\"}}, \"$db\": \"database\"}", renderer.render(find));
+  }
+
+  @Test
+  public void testObjectIdRenderedAsDriver() {
+    BsonDocument find = new BsonDocument("find", new BsonString("collection"))
+        .append("filter", new BsonDocument("_id", new BsonObjectId(new ObjectId())))
+        .append("ids", new BsonArray(Arrays.<BsonValue>asList(new BsonObjectId(),
+            new BsonObjectId(new ObjectId("00ff7f80a0b0c0d0e0f00102")))));
+    assertEquals(find.toJson(JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).build()),
+        StatementRenderer.DEFAULT.render(find));
+  }
+
+  @Test
+  public void testRepeatedShapeIsCached() {
+    StatementRenderer renderer = new StatementRenderer.Builder().withObfuscatedLiterals().build();
+    String first = renderer.render(new BsonDocument("find", new BsonString("collection"))
+        .append("filter", new BsonDocument("name", new BsonString("first"))));
+    String second = renderer.render(new BsonDocument("find", new BsonString("collection"))
+        .append("filter", new BsonDocument("name", new BsonString("second"))));
+    String other = renderer.render(new BsonDocument("find", new BsonString("other"))
+        .append("filter", new BsonDocument("name", new BsonString("first"))));
+    assertSame(first, second);
+    assertNotSame(first, other);
+  }
+
+  @Test
+  public void testCollidingFingerprintRenderedAgain() {
+    BsonDocument find = new BsonDocument("find", new BsonString("collection"))
+        .append("filter", new BsonDocument("name", new BsonString("first")));
+    BsonDocument count = new BsonDocument("count", new BsonString("collection"))
+        .append("query", new BsonDocument("age", new BsonInt32(42)));
+    FingerprintCache<StatementRenderer.Shape> shapes = new FingerprintCache<>(16);
+    StatementRenderer renderer = new StatementRenderer(Integer.MAX_VALUE,
+        Collections.<String>emptySet(), shapes);
+    String findShape = renderer.render(find);
+
+    FingerprintCache<StatementRenderer.Shape> colliding = new FingerprintCache<>(16);
+    colliding.put(renderer.commandFingerprint(count),
+        shapes.get(renderer.commandFingerprint(find)));
+    renderer = new StatementRenderer(Integer.MAX_VALUE, Collections.<String>emptySet(), colliding);
+    assertEquals("{\"find\": \"collection\", \"filter\": {\"name\": \"?\"}}", findShape);
+    assertEquals("{\"count\": \"collection\", \"query\": {\"age\": \"?\"}}",
+        renderer.render(count));
+  }
+
+  @Test
+  public void testRepeatedArrayElementShapesCollapsed() {
+    StatementRenderer renderer = new StatementRenderer.Builder().withObfuscatedLiterals().build();
+    assertEquals("{\"insert\": \"collection\", \"ordered\": \"?\", "
+        + "\"documents\": [{\"name\": \"?\"}]}", renderer.render(insert));
+  }
+}
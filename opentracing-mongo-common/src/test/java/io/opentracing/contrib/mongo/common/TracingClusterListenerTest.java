@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterConnectionMode;
+import com.mongodb.connection.ClusterDescription;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ClusterType;
+import com.mongodb.connection.ServerConnectionState;
+import com.mongodb.connection.ServerDescription;
+import com.mongodb.connection.ServerType;
+import com.mongodb.event.ClusterDescriptionChangedEvent;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class TracingClusterListenerTest {
+
+  private final ServerAddress primary = new ServerAddress("localhost", 27017);
+  private final ServerAddress secondary = new ServerAddress("localhost", 27018);
+
+  @Test
+  public void testPeerTagsOfChangedServerInvalidated() {
+    PeerTags primaryTags = PeerTags.of(primary);
+    PeerTags secondaryTags = PeerTags.of(secondary);
+    assertSame(primaryTags, PeerTags.of(primary));
+
+    ClusterDescription before = cluster(
+        server(primary, ServerType.REPLICA_SET_PRIMARY),
+        server(secondary, ServerType.REPLICA_SET_SECONDARY));
+    ClusterDescription after = cluster(
+        server(primary, ServerType.REPLICA_SET_SECONDARY),
+        server(secondary, ServerType.REPLICA_SET_SECONDARY));
+    new TracingClusterListener().clusterDescriptionChanged(
+        new ClusterDescriptionChangedEvent(new ClusterId(), after, before));
+
+    assertNotSame(primaryTags, PeerTags.of(primary));
+    assertSame(secondaryTags, PeerTags.of(secondary));
+  }
+
+  @Test
+  public void testFullPeerTagsCacheCleared() {
+    for (int port = 1; port <= PeerTags.MAX_CACHED_ADDRESSES; port++) {
+      PeerTags.of(new ServerAddress("127.0.0.1", port));
+    }
+    ServerAddress latest = new ServerAddress("127.0.0.1", PeerTags.MAX_CACHED_ADDRESSES + 1);
+    PeerTags latestTags = PeerTags.of(latest);
+
+    assertTrue(PeerTags.cacheSize() < PeerTags.MAX_CACHED_ADDRESSES);
+    assertSame(latestTags, PeerTags.of(latest));
+  }
+
+  @Test
+  public void testTopologyChangeTraced() {
+    MockTracer tracer = new MockTracer();
+    TracingClusterListener listener = new TracingClusterListener(tracer);
+    ClusterDescription before = cluster(
+        server(primary, ServerType.REPLICA_SET_PRIMARY),
+        server(secondary, ServerType.REPLICA_SET_SECONDARY));
+    ClusterDescription heartbeat = cluster(
+        server(primary, ServerType.REPLICA_SET_PRIMARY),
+        server(secondary, ServerType.REPLICA_SET_SECONDARY));
+    ClusterDescription failover = cluster(
+        server(primary, ServerType.REPLICA_SET_SECONDARY),
+        server(secondary, ServerType.REPLICA_SET_PRIMARY));
+
+    listener.clusterDescriptionChanged(
+        new ClusterDescriptionChangedEvent(new ClusterId(), heartbeat, before));
+    assertTrue(tracer.finishedSpans().isEmpty());
+
+    listener.clusterDescriptionChanged(
+        new ClusterDescriptionChangedEvent(new ClusterId(), failover, heartbeat));
+    List<MockSpan> spans = tracer.finishedSpans();
+    assertEquals(1, spans.size());
+    MockSpan span = spans.get(0);
+    assertEquals(TracingClusterListener.TOPOLOGY_CHANGED, span.operationName());
+    assertEquals(secondary.toString(), span.tags().get(TracingClusterListener.PRIMARY_TAG));
+    assertEquals(2, span.logEntries().size());
+  }
+
+  @Test
+  public void testTimeWithoutWritableServerTraced() {
+    MockTracer tracer = new MockTracer();
+    TracingClusterListener listener = new TracingClusterListener(tracer);
+    ClusterDescription before = cluster(
+        server(primary, ServerType.REPLICA_SET_PRIMARY),
+        server(secondary, ServerType.REPLICA_SET_SECONDARY));
+    ClusterDescription election = cluster(
+        server(primary, ServerType.REPLICA_SET_SECONDARY),
+        server(secondary, ServerType.REPLICA_SET_SECONDARY));
+    ClusterDescription after = cluster(
+        server(primary, ServerType.REPLICA_SET_SECONDARY),
+        server(secondary, ServerType.REPLICA_SET_PRIMARY));
+
+    listener.clusterDescriptionChanged(
+        new ClusterDescriptionChangedEvent(new ClusterId(), election, before));
+    assertEquals(1, tracer.finishedSpans().size());
+
+    listener.clusterDescriptionChanged(
+        new ClusterDescriptionChangedEvent(new ClusterId(), after, election));
+    List<MockSpan> spans = tracer.finishedSpans();
+    assertEquals(3, spans.size());
+    MockSpan noWritableServer = spans.get(2);
+    assertEquals(TracingClusterListener.NO_WRITABLE_SERVER, noWritableServer.operationName());
+    assertEquals(secondary.toString(),
+        noWritableServer.tags().get(TracingClusterListener.PRIMARY_TAG));
+  }
+
+  private static ClusterDescription cluster(ServerDescription... servers) {
+    return new ClusterDescription(ClusterConnectionMode.MULTIPLE, ClusterType.REPLICA_SET,
+        Arrays.asList(servers));
+  }
+
+  private static ServerDescription server(ServerAddress address, ServerType type) {
+    return ServerDescription.builder()
+        .address(address)
+        .state(ServerConnectionState.CONNECTED)
+        .ok(true)
+        .type(type)
+        .build();
+  }
+}
@@ -14,25 +14,39 @@
 package io.opentracing.contrib.mongo.common;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import com.mongodb.ServerAddress;
 import com.mongodb.connection.ClusterId;
 import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ConnectionId;
 import com.mongodb.connection.ServerId;
+import com.mongodb.connection.ServerType;
 import com.mongodb.event.CommandFailedEvent;
 import com.mongodb.event.CommandStartedEvent;
 import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.event.ConnectionRemovedEvent;
 import io.opentracing.Span;
 import io.opentracing.Tracer;
 import io.opentracing.contrib.mongo.common.providers.MongoSpanNameProvider;
 import io.opentracing.contrib.mongo.common.providers.NoopSpanNameProvider;
 import io.opentracing.contrib.mongo.common.providers.PrefixSpanNameProvider;
+import io.opentracing.contrib.mongo.common.samplers.CommandSampler;
 import io.opentracing.mock.MockSpan;
 import io.opentracing.mock.MockTracer;
 import io.opentracing.tag.Tags;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.bson.BsonArray;
 import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -117,4 +131,423 @@ public class TracingCommandListenerTest {
     assertEquals(((mockSpan).tags().get(Tags.COMPONENT.getKey())), FOO);
     assertEquals(((mockSpan).tags().get(FOO)), FOO);
   }
+
+  @Test
+  public void testFullTracingWithoutOverheadBudget() {
+    TracingCommandListener listener = new TracingCommandListener.Builder(tracer).build();
+    assertEquals(TracingLevel.FULL, listener.getTracingLevel());
+    assertEquals(0, listener.getOverhead(), 0);
+
+    listener = new TracingCommandListener.Builder(tracer).withOverheadBudget(0.05).build();
+    listener.commandStarted(commandStartedEvent(16, "find",
+        new BsonDocument("find", new BsonString("test"))));
+    assertEquals(TracingLevel.FULL, listener.getTracingLevel());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeOverheadBudgetRejected() {
+    new TracingCommandListener.Builder(tracer).withOverheadBudget(-1).build();
+  }
+
+  @Test
+  public void testRoutedDecorators() {
+    MockTracer mockTracer = new MockTracer();
+    SpanDecorator reply = new SpanDecorator() {
+      @Override
+      public void commandStarted(CommandStartedEvent event, Span span) {
+      }
+
+      @Override
+      public void commandSucceeded(CommandSucceededEvent event, Span span) {
+        span.setTag(FOO, FOO);
+      }
+
+      @Override
+      public void commandFailed(CommandFailedEvent event, Span span) {
+      }
+    };
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer)
+        .withRoutedSpanDecorators(null, "payments", null, Collections.singletonList(reply))
+        .build();
+    listener.commandStarted(commandStartedEvent(1, "find",
+        new BsonDocument("find", new BsonString("payments"))));
+    listener.commandStarted(commandStartedEvent(2, "find",
+        new BsonDocument("find", new BsonString("cache"))));
+    listener.commandSucceeded(commandSucceededEvent(1, "find", new BsonDocument()));
+    listener.commandSucceeded(commandSucceededEvent(2, "find", new BsonDocument()));
+
+    List<MockSpan> finished = mockTracer.finishedSpans();
+    assertEquals(FOO, finished.get(0).tags().get(FOO));
+    assertNull(finished.get(1).tags().get(FOO));
+    assertEquals(TracingCommandListener.COMPONENT_NAME,
+        finished.get(1).tags().get(Tags.COMPONENT.getKey()));
+  }
+
+  @Test
+  public void testUnsampledCommandNotTraced() {
+    MockTracer mockTracer = new MockTracer();
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer)
+        .withCommandSampler(CommandSampler.NEVER)
+        .build();
+    assertNull(listener.buildSpan(event));
+    listener.commandStarted(event);
+    listener.commandSucceeded(succeededEvent(1));
+    assertTrue(mockTracer.finishedSpans().isEmpty());
+  }
+
+  @Test
+  public void testExpiredSpanFinished() throws InterruptedException {
+    MockTracer mockTracer = new MockTracer();
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer)
+        .withSpanTtl(1, TimeUnit.MILLISECONDS)
+        .build();
+    listener.commandStarted(event);
+    Thread.sleep(10);
+    listener.commandStarted(startedEvent(2, event.getConnectionDescription()));
+
+    List<MockSpan> finished = mockTracer.finishedSpans();
+    assertEquals(1, finished.size());
+    assertEquals(Boolean.TRUE, finished.get(0).tags().get(Tags.ERROR.getKey()));
+    assertEquals(TracingCommandListener.TIMEOUT_EVENT,
+        finished.get(0).logEntries().get(0).fields().get("event"));
+  }
+
+  @Test
+  public void testMaxInFlightSpans() {
+    MockTracer mockTracer = new MockTracer();
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer)
+        .withMaxInFlightSpans(1)
+        .build();
+    listener.commandStarted(event);
+    listener.commandStarted(startedEvent(2, event.getConnectionDescription()));
+    listener.commandSucceeded(succeededEvent(1));
+    listener.commandSucceeded(succeededEvent(2));
+
+    assertEquals(1, mockTracer.finishedSpans().size());
+  }
+
+  @Test
+  public void testSpansOfClosedConnectionFinished() {
+    MockTracer mockTracer = new MockTracer();
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer).build();
+    ServerId serverId = new ServerId(new ClusterId(), new ServerAddress());
+    ConnectionId closed = new ConnectionId(serverId, 1, null);
+    ConnectionId open = new ConnectionId(serverId, 2, null);
+    listener.commandStarted(startedEvent(1,
+        new ConnectionDescription(closed.withServerValue(42), null, ServerType.STANDALONE, 0, 0, 0)));
+    listener.commandStarted(startedEvent(2,
+        new ConnectionDescription(open.withServerValue(43), null, ServerType.STANDALONE, 0, 0, 0)));
+
+    new TracingConnectionPoolListener(listener).connectionRemoved(
+        new ConnectionRemovedEvent(closed));
+
+    List<MockSpan> finished = mockTracer.finishedSpans();
+    assertEquals(1, finished.size());
+    assertTrue(finished.get(0).tags().containsKey(Tags.ERROR.getKey()));
+    assertEquals(TracingCommandListener.CONNECTION_CLOSED_EVENT,
+        finished.get(0).logEntries().get(0).fields().get("event"));
+
+    listener.commandSucceeded(succeededEvent(2));
+    assertEquals(2, mockTracer.finishedSpans().size());
+  }
+
+  @Test
+  public void testSlowCommandRetention() {
+    MockTracer mockTracer = new MockTracer();
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer)
+        .withSlowCommandRetention(10, TimeUnit.MILLISECONDS)
+        .build();
+    listener.commandStarted(event);
+    listener.commandStarted(startedEvent(2, event.getConnectionDescription()));
+    listener.commandStarted(startedEvent(3, event.getConnectionDescription()));
+    assertTrue(mockTracer.finishedSpans().isEmpty());
+
+    listener.commandSucceeded(succeededEvent(1, TimeUnit.MILLISECONDS.toNanos(1)));
+    listener.commandSucceeded(succeededEvent(2, TimeUnit.MILLISECONDS.toNanos(20)));
+    listener.commandFailed(new CommandFailedEvent(3, event.getConnectionDescription(),
+        "commandName", 1, new RuntimeException()));
+
+    List<MockSpan> finished = mockTracer.finishedSpans();
+    assertEquals(2, finished.size());
+    MockSpan slow = finished.get(0);
+    assertEquals(TracingCommandListener.COMPONENT_NAME, slow.tags().get(Tags.COMPONENT.getKey()));
+    assertEquals(20_000, slow.finishMicros() - slow.startMicros());
+    assertEquals(Boolean.TRUE, finished.get(1).tags().get(Tags.ERROR.getKey()));
+  }
+
+  @Test
+  public void testSamplerNotConsultedInSlowCommandRetention() {
+    MockTracer mockTracer = new MockTracer();
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer)
+        .withSlowCommandRetention(10, TimeUnit.MILLISECONDS)
+        .withCommandSampler(CommandSampler.NEVER)
+        .build();
+    listener.commandStarted(event);
+    listener.commandSucceeded(succeededEvent(1, TimeUnit.MILLISECONDS.toNanos(20)));
+
+    assertEquals(1, mockTracer.finishedSpans().size());
+  }
+
+  @Test
+  public void testTopologyTracingOptIn() {
+    assertFalse(new TracingCommandListener.Builder(new MockTracer()).build().isTopologyTracing());
+    assertTrue(new TracingCommandListener.Builder(new MockTracer()).withTopologyTracing().build()
+        .isTopologyTracing());
+  }
+
+  @Test
+  public void testSpanDurationIsElapsedTime() {
+    MockTracer mockTracer = new MockTracer();
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer).build();
+    listener.commandStarted(event);
+    listener.commandSucceeded(succeededEvent(1, TimeUnit.MILLISECONDS.toNanos(20)));
+
+    MockSpan finished = mockTracer.finishedSpans().get(0);
+    assertEquals(20_000, finished.finishMicros() - finished.startMicros());
+  }
+
+  @Test
+  public void testSpanDurationIsElapsedTimeAcrossReanchoring() throws InterruptedException {
+    MockTracer mockTracer = new MockTracer();
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer).build();
+    listener.commandStarted(event);
+    Thread.sleep(2);
+    Timestamps.reanchor();
+    listener.commandSucceeded(succeededEvent(1, TimeUnit.MILLISECONDS.toNanos(20)));
+
+    MockSpan finished = mockTracer.finishedSpans().get(0);
+    assertEquals(20_000, finished.finishMicros() - finished.startMicros());
+  }
+
+  @Test
+  public void testSlowCommandThresholdPerCommandName() {
+    MockTracer mockTracer = new MockTracer();
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer)
+        .withSlowCommandRetention(10, TimeUnit.MILLISECONDS)
+        .withSlowCommandThreshold("commandName", 1, TimeUnit.SECONDS)
+        .build();
+    listener.commandStarted(event);
+    listener.commandSucceeded(succeededEvent(1, TimeUnit.MILLISECONDS.toNanos(20)));
+
+    assertTrue(mockTracer.finishedSpans().isEmpty());
+  }
+
+  @Test
+  public void testGetMoresAggregatedIntoCursorSpan() {
+    MockTracer mockTracer = new MockTracer();
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer)
+        .withCursorAggregation()
+        .build();
+    listener.commandStarted(commandStartedEvent(1, "find",
+        new BsonDocument("find", new BsonString("users"))));
+    listener.commandSucceeded(commandSucceededEvent(1, "find", cursorReply(42, "firstBatch", 2)));
+    for (int requestId = 2; requestId <= 3; requestId++) {
+      listener.commandStarted(commandStartedEvent(requestId, "getMore",
+          new BsonDocument("getMore", new BsonInt64(42))));
+      listener.commandSucceeded(commandSucceededEvent(requestId, "getMore",
+          cursorReply(requestId == 3 ? 0 : 42, "nextBatch", 3)));
+    }
+
+    List<MockSpan> finished = mockTracer.finishedSpans();
+    assertEquals(1, finished.size());
+    assertEquals("find", finished.get(0).operationName());
+    assertEquals(3, finished.get(0).tags().get(CursorSpans.BATCHES_TAG));
+    assertEquals(8L, finished.get(0).tags().get(CursorSpans.DOCUMENTS_TAG));
+  }
+
+  @Test
+  public void testKilledCursorSpanFinished() {
+    MockTracer mockTracer = new MockTracer();
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer)
+        .withCursorAggregation()
+        .build();
+    listener.commandStarted(commandStartedEvent(1, "aggregate",
+        new BsonDocument("aggregate", new BsonString("users"))));
+    listener.commandSucceeded(commandSucceededEvent(1, "aggregate",
+        cursorReply(42, "firstBatch", 1)));
+    assertTrue(mockTracer.finishedSpans().isEmpty());
+
+    listener.commandStarted(commandStartedEvent(2, "killCursors",
+        new BsonDocument("killCursors", new BsonString("users"))
+            .append("cursors", new BsonArray(Collections.singletonList(new BsonInt64(42))))));
+
+    List<MockSpan> finished = mockTracer.finishedSpans();
+    assertEquals(1, finished.size());
+    assertEquals(Boolean.TRUE, finished.get(0).tags().get(CursorSpans.KILLED_TAG));
+  }
+
+  @Test
+  public void testAsyncFinishing() throws InterruptedException {
+    MockTracer mockTracer = new MockTracer();
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer)
+        .withAsyncFinishing(2)
+        .build();
+    listener.commandStarted(event);
+    listener.commandStarted(startedEvent(2, event.getConnectionDescription()));
+    listener.commandSucceeded(succeededEvent(1));
+    listener.commandFailed(new CommandFailedEvent(2, event.getConnectionDescription(),
+        "commandName", 1, new RuntimeException()));
+
+    List<MockSpan> finished = awaitFinishedSpans(mockTracer, 2);
+    assertEquals(2, finished.size());
+    for (MockSpan finishedSpan : finished) {
+      assertTrue(finishedSpan.finishMicros() >= finishedSpan.startMicros());
+    }
+    assertEquals(0, listener.getDroppedSpans());
+  }
+
+  @Test
+  public void testFullFinishQueueDropsSpans() throws InterruptedException {
+    final CountDownLatch decorating = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    MockTracer mockTracer = new MockTracer();
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer)
+        .withSpanDecorators(Collections.<SpanDecorator>singletonList(new SpanDecorator() {
+          @Override
+          public void commandStarted(CommandStartedEvent event, Span span) {
+          }
+
+          @Override
+          public void commandSucceeded(CommandSucceededEvent event, Span span) {
+            decorating.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+
+          @Override
+          public void commandFailed(CommandFailedEvent event, Span span) {
+          }
+        }))
+        .withAsyncFinishing(1)
+        .withFinishQueue(2, FullQueuePolicy.DROP)
+        .build();
+    for (int requestId = 1; requestId <= 4; requestId++) {
+      listener.commandStarted(startedEvent(requestId, event.getConnectionDescription()));
+    }
+    listener.commandSucceeded(succeededEvent(1));
+    assertTrue(decorating.await(5, TimeUnit.SECONDS));
+    listener.commandSucceeded(succeededEvent(2));
+    listener.commandSucceeded(succeededEvent(3));
+    listener.commandSucceeded(succeededEvent(4));
+    assertEquals(1, listener.getDroppedSpans());
+
+    release.countDown();
+    assertEquals(3, awaitFinishedSpans(mockTracer, 3).size());
+  }
+
+  @Test
+  public void testCloseDrainsFinishQueue() {
+    MockTracer mockTracer = new MockTracer();
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer)
+        .withSpanDecorators(Collections.<SpanDecorator>singletonList(new SpanDecorator() {
+          @Override
+          public void commandStarted(CommandStartedEvent event, Span span) {
+          }
+
+          @Override
+          public void commandSucceeded(CommandSucceededEvent event, Span span) {
+            if (event.getRequestId() == 1) {
+              throw new AssertionError();
+            }
+          }
+
+          @Override
+          public void commandFailed(CommandFailedEvent event, Span span) {
+          }
+        }))
+        .withAsyncFinishing(1)
+        .build();
+    for (int requestId = 1; requestId <= 3; requestId++) {
+      listener.commandStarted(startedEvent(requestId, event.getConnectionDescription()));
+      listener.commandSucceeded(succeededEvent(requestId));
+    }
+    listener.close();
+    assertEquals(2, mockTracer.finishedSpans().size());
+
+    listener.commandStarted(startedEvent(4, event.getConnectionDescription()));
+    listener.commandSucceeded(succeededEvent(4));
+    assertEquals(3, mockTracer.finishedSpans().size());
+  }
+
+  @Test
+  public void testSpansCompletingDuringCloseFinished() throws InterruptedException {
+    final int spans = 1000;
+    MockTracer mockTracer = new MockTracer();
+    final TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer)
+        .withAsyncFinishing(2)
+        .withFinishQueue(2048, FullQueuePolicy.FINISH_INLINE)
+        .build();
+    for (int requestId = 1; requestId <= spans; requestId++) {
+      listener.commandStarted(startedEvent(requestId, event.getConnectionDescription()));
+    }
+    List<Thread> producers = new ArrayList<>();
+    for (int producer = 0; producer < 4; producer++) {
+      final int first = producer + 1;
+      producers.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int requestId = first; requestId <= spans; requestId += 4) {
+            listener.commandSucceeded(succeededEvent(requestId));
+          }
+        }
+      }));
+    }
+    for (Thread producer : producers) {
+      producer.start();
+    }
+    listener.close();
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    assertEquals(spans, mockTracer.finishedSpans().size());
+  }
+
+  private static List<MockSpan> awaitFinishedSpans(MockTracer mockTracer, int count)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (mockTracer.finishedSpans().size() < count && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    return mockTracer.finishedSpans();
+  }
+
+  private CommandStartedEvent commandStartedEvent(int requestId, String commandName,
+      BsonDocument command) {
+    return new CommandStartedEvent(requestId, event.getConnectionDescription(), "databaseName",
+        commandName, command);
+  }
+
+  private CommandSucceededEvent commandSucceededEvent(int requestId, String commandName,
+      BsonDocument reply) {
+    return new CommandSucceededEvent(requestId, event.getConnectionDescription(), commandName,
+        reply, 1);
+  }
+
+  private static BsonDocument cursorReply(long cursorId, String batchKey, int documents) {
+    BsonArray batch = new BsonArray();
+    for (int i = 0; i < documents; i++) {
+      batch.add(new BsonDocument("_id", new BsonInt32(i)));
+    }
+    return new BsonDocument("cursor", new BsonDocument("id", new BsonInt64(cursorId))
+        .append(batchKey, batch))
+        .append("ok", new BsonInt32(1));
+  }
+
+  private static CommandStartedEvent startedEvent(int requestId,
+      ConnectionDescription connectionDescription) {
+    return new CommandStartedEvent(requestId, connectionDescription, "databaseName", "commandName",
+        new BsonDocument());
+  }
+
+  private CommandSucceededEvent succeededEvent(int requestId) {
+    return succeededEvent(requestId, 1);
+  }
+
+  private CommandSucceededEvent succeededEvent(int requestId, long elapsedNanos) {
+    return new CommandSucceededEvent(requestId, event.getConnectionDescription(), "commandName",
+        new BsonDocument(), elapsedNanos);
+  }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ConnectionId;
+import com.mongodb.connection.ConnectionPoolSettings;
+import com.mongodb.connection.ServerId;
+import com.mongodb.connection.ServerType;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.event.ConnectionAddedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolClosedEvent;
+import com.mongodb.event.ConnectionPoolOpenedEvent;
+import io.opentracing.contrib.mongo.common.metrics.ConnectionPoolMetrics;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import java.util.Collections;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.junit.Test;
+
+public class TracingConnectionPoolListenerTest {
+
+  private final ServerId serverId = new ServerId(new ClusterId(), new ServerAddress());
+  private final ConnectionId connectionId = new ConnectionId(serverId);
+  private final ConnectionDescription connectionDescription = new ConnectionDescription(
+      connectionId, 0, ServerType.STANDALONE, 0, 0, 0, Collections.<String>emptyList());
+  private final MockTracer tracer = new MockTracer();
+  private final TracingCommandListener commandListener = new TracingCommandListener.Builder(
+      tracer).build();
+  private final TracingConnectionPoolListener poolListener = new TracingConnectionPoolListener(
+      commandListener);
+
+  @Test
+  public void testPoolMetrics() {
+    poolListener.connectionPoolOpened(new ConnectionPoolOpenedEvent(serverId,
+        ConnectionPoolSettings.builder().build()));
+    poolListener.connectionAdded(new ConnectionAddedEvent(connectionId));
+    waitQueueEntered();
+    poolListener.connectionCheckedOut(new ConnectionCheckedOutEvent(connectionId));
+
+    ConnectionPoolMetrics metrics = commandListener.getConnectionPoolMetrics().iterator().next();
+    assertEquals(serverId.getAddress().toString(), metrics.getServer());
+    assertEquals(1, metrics.getSize());
+    assertEquals(1, metrics.getCheckedOut());
+    assertEquals(1, metrics.getWaitQueueSize());
+    assertEquals(1, metrics.getWaitTime().getCount());
+
+    waitQueueExited();
+    poolListener.connectionCheckedIn(new ConnectionCheckedInEvent(connectionId));
+    assertEquals(0, metrics.getCheckedOut());
+    assertEquals(0, metrics.getWaitQueueSize());
+
+    poolListener.connectionPoolClosed(new ConnectionPoolClosedEvent(serverId));
+    assertTrue(commandListener.getConnectionPoolMetrics().isEmpty());
+  }
+
+  @Test
+  public void testWaitTaggedOnFirstCommand() {
+    waitQueueEntered();
+    poolListener.connectionCheckedOut(new ConnectionCheckedOutEvent(connectionId));
+    waitQueueExited();
+    for (int requestId = 1; requestId <= 2; requestId++) {
+      commandListener.commandStarted(new CommandStartedEvent(requestId, connectionDescription,
+          "db", "find", new BsonDocument("find", new BsonString("users"))));
+      commandListener.commandSucceeded(new CommandSucceededEvent(requestId, connectionDescription,
+          "find", new BsonDocument(), 1));
+    }
+
+    MockSpan first = tracer.finishedSpans().get(0);
+    assertTrue(first.tags().get(TracingCommandListener.POOL_WAIT_TAG) instanceof Long);
+    assertNull(tracer.finishedSpans().get(1).tags().get(TracingCommandListener.POOL_WAIT_TAG));
+  }
+
+  @Test
+  public void testWaitOfOtherThreadNotTagged() throws InterruptedException {
+    Thread waiter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        waitQueueEntered();
+      }
+    });
+    waiter.start();
+    waiter.join();
+    poolListener.connectionCheckedOut(new ConnectionCheckedOutEvent(connectionId));
+    commandListener.commandStarted(new CommandStartedEvent(1, connectionDescription, "db", "find",
+        new BsonDocument("find", new BsonString("users"))));
+    commandListener.commandSucceeded(new CommandSucceededEvent(1, connectionDescription, "find",
+        new BsonDocument(), 1));
+
+    assertNull(tracer.finishedSpans().get(0).tags().get(TracingCommandListener.POOL_WAIT_TAG));
+    ConnectionPoolMetrics metrics = commandListener.getConnectionPoolMetrics().iterator().next();
+    assertEquals(0, metrics.getWaitTime().getCount());
+  }
+
+  // the wait queue events are deprecated in 3.12, but are the only signal of a checkout wait
+  @SuppressWarnings("deprecation")
+  private void waitQueueEntered() {
+    poolListener.waitQueueEntered(new com.mongodb.event.ConnectionPoolWaitQueueEnteredEvent(
+        serverId));
+  }
+
+  @SuppressWarnings("deprecation")
+  private void waitQueueExited() {
+    poolListener.waitQueueExited(new com.mongodb.event.ConnectionPoolWaitQueueExitedEvent(
+        serverId));
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.mongodb.MongoSocketException;
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionId;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.ServerHeartbeatFailedEvent;
+import com.mongodb.event.ServerHeartbeatSucceededEvent;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.tag.Tags;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.bson.BsonDocument;
+import org.junit.Test;
+
+public class TracingServerMonitorListenerTest {
+
+  private final ServerAddress address = new ServerAddress("localhost", 27017);
+  private final ConnectionId connectionId = new ConnectionId(
+      new ServerId(new ClusterId(), address));
+  private final MockTracer tracer = new MockTracer();
+  private final TracingServerMonitorListener listener = new TracingServerMonitorListener(tracer);
+
+  @Test
+  public void testOnlyChangedOutcomesTraced() {
+    listener.serverHeartbeatSucceeded(succeeded());
+    listener.serverHeartbeatSucceeded(succeeded());
+    assertTrue(tracer.finishedSpans().isEmpty());
+
+    listener.serverHeartbeatFailed(failed());
+    listener.serverHeartbeatFailed(failed());
+    listener.serverHeartbeatSucceeded(succeeded());
+    listener.serverHeartbeatSucceeded(succeeded());
+
+    List<MockSpan> spans = tracer.finishedSpans();
+    assertEquals(2, spans.size());
+    MockSpan failure = spans.get(0);
+    assertEquals(TracingServerMonitorListener.HEARTBEAT, failure.operationName());
+    assertEquals(Boolean.TRUE, failure.tags().get(Tags.ERROR.getKey()));
+    assertEquals(1, failure.logEntries().size());
+    assertNull(failure.tags().get(TracingServerMonitorListener.RECOVERED_TAG));
+    MockSpan recovery = spans.get(1);
+    assertEquals(Boolean.TRUE, recovery.tags().get(TracingServerMonitorListener.RECOVERED_TAG));
+    assertEquals("localhost", recovery.tags().get(Tags.PEER_HOSTNAME.getKey()));
+  }
+
+  @Test
+  public void testSpanDurationIsRoundTrip() {
+    listener.serverHeartbeatFailed(failed());
+    MockSpan span = tracer.finishedSpans().get(0);
+    long duration = span.finishMicros() - span.startMicros();
+    assertTrue(duration >= TimeUnit.MILLISECONDS.toMicros(5));
+  }
+
+  private ServerHeartbeatSucceededEvent succeeded() {
+    return new ServerHeartbeatSucceededEvent(connectionId, new BsonDocument(),
+        TimeUnit.MILLISECONDS.toNanos(5));
+  }
+
+  private ServerHeartbeatFailedEvent failed() {
+    return new ServerHeartbeatFailedEvent(connectionId, TimeUnit.MILLISECONDS.toNanos(5),
+        new MongoSocketException("connection refused", address));
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testBucketBounds() {
+    for (int index = 0; index < LatencyHistogram.BUCKETS; index++) {
+      long upperBound = LatencyHistogram.bucketUpperBound(index);
+      assertEquals(index, LatencyHistogram.bucketIndex(upperBound));
+      if (index + 1 < LatencyHistogram.BUCKETS) {
+        assertEquals(index + 1, LatencyHistogram.bucketIndex(upperBound + 1));
+      }
+    }
+    assertEquals(LatencyHistogram.MAX_TRACKABLE_MICROS,
+        LatencyHistogram.bucketUpperBound(LatencyHistogram.BUCKETS - 1));
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int millis = 1; millis <= 100; millis++) {
+      histogram.record(millis, TimeUnit.MILLISECONDS);
+    }
+    HistogramSnapshot snapshot = histogram.snapshot();
+    assertEquals(100, snapshot.getCount());
+    assertEquals(100_000, snapshot.getMaxMicros());
+    assertEquals(50_500, snapshot.getMeanMicros(), 0.001);
+    assertWithinError(50_000, snapshot.getValueAtPercentile(50));
+    assertWithinError(99_000, snapshot.getValueAtPercentile(99));
+    assertEquals(100_000, snapshot.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void testLatencyAboveRangeClamped() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(1, TimeUnit.DAYS);
+    HistogramSnapshot snapshot = histogram.snapshot();
+    assertEquals(LatencyHistogram.MAX_TRACKABLE_MICROS, snapshot.getMaxMicros());
+    assertEquals(1, snapshot.getCountAtOrBelow(LatencyHistogram.MAX_TRACKABLE_MICROS));
+  }
+
+  private static void assertWithinError(long expected, long actual) {
+    assertTrue(actual + " not within error of " + expected,
+        Math.abs(actual - expected) <= expected / LatencyHistogram.SUB_BUCKETS);
+  }
+}
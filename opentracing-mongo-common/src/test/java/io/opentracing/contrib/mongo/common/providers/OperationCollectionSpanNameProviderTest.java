@@ -24,6 +24,7 @@ import org.bson.BsonString;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 public class OperationCollectionSpanNameProviderTest {
 
@@ -55,4 +56,19 @@ public class OperationCollectionSpanNameProviderTest {
   public void testOperationNameNotString() {
     assertEquals("buildInfo", provider.generateName(BUILD_INFO_TEST_EVENT));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testNameCached() {
+    assertSame(provider.generateName(INSERT_TEST_EVENT), provider.generateName(INSERT_TEST_EVENT));
+  }
+
+  @Test
+  public void testCommandNameBeyondMaxCachedNames() {
+    MongoSpanNameProvider provider = new OperationCollectionSpanNameProvider(1);
+    assertEquals("insert collection-name", provider.generateName(INSERT_TEST_EVENT));
+    assertEquals("insert", provider.generateName(new CommandStartedEvent(2,
+        INSERT_TEST_EVENT.getConnectionDescription(), "database-name", "insert",
+        new BsonDocument().append("insert", new BsonString("other-collection")))));
+    assertEquals("insert collection-name", provider.generateName(INSERT_TEST_EVENT));
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.common.samplers;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandStartedEvent;
+import java.util.Collections;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.junit.Test;
+
+public class PerCollectionSamplerTest {
+
+  private final CommandSampler sampler = new PerCollectionSampler(
+      Collections.singletonMap("payments", CommandSampler.ALWAYS), CommandSampler.NEVER);
+
+  @Test
+  public void testCollection() {
+    assertTrue(sampler.isSampled(event(new BsonDocument("find", new BsonString("payments")))));
+    assertFalse(sampler.isSampled(event(new BsonDocument("find", new BsonString("cache")))));
+  }
+
+  @Test
+  public void testGetMoreCollection() {
+    assertTrue(sampler.isSampled(event(new BsonDocument("getMore", new BsonInt64(1))
+        .append("collection", new BsonString("payments")))));
+  }
+
+  @Test
+  public void testNoCollection() {
+    assertFalse(sampler.isSampled(event(new BsonDocument("ping", new BsonInt64(1)))));
+  }
+
+  private static CommandStartedEvent event(BsonDocument command) {
+    return new CommandStartedEvent(1,
+        new ConnectionDescription(new ServerId(new ClusterId(), new ServerAddress())),
+        "databaseName", command.getFirstKey(), command);
+  }
+}
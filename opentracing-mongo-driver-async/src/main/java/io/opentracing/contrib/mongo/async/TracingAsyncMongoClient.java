@@ -14,9 +14,13 @@
 package io.opentracing.contrib.mongo.async;
 
 
+import com.mongodb.Block;
 import com.mongodb.ClientSessionOptions;
 import com.mongodb.MongoClientSettings;
 import com.mongodb.MongoDriverInformation;
+import com.mongodb.connection.ClusterSettings;
+import com.mongodb.connection.ConnectionPoolSettings;
+import com.mongodb.connection.ServerSettings;
 import com.mongodb.async.SingleResultCallback;
 import com.mongodb.async.client.ChangeStreamIterable;
 import com.mongodb.async.client.ClientSession;
@@ -26,7 +30,12 @@ import com.mongodb.async.client.MongoClients;
 import com.mongodb.async.client.MongoDatabase;
 import com.mongodb.async.client.MongoIterable;
 import io.opentracing.Tracer;
+import io.opentracing.contrib.mongo.common.SpanPropagation;
+import io.opentracing.contrib.mongo.common.TracingClusterListener;
 import io.opentracing.contrib.mongo.common.TracingCommandListener;
+import io.opentracing.contrib.mongo.common.TracingConnectionPoolListener;
+import io.opentracing.contrib.mongo.common.TracingServerMonitorListener;
+import java.util.Arrays;
 import java.util.List;
 import org.bson.Document;
 import org.bson.conversions.Bson;
@@ -38,6 +47,8 @@ import org.bson.conversions.Bson;
 public class TracingAsyncMongoClient implements MongoClient {
 
   private final MongoClient mongoClient;
+  private final SpanPropagation propagation;
+  private final TracingCommandListener tracingCommandListener;
 
 
   public TracingAsyncMongoClient(final Tracer tracer, final MongoClientSettings settings) {
@@ -46,12 +57,53 @@ public class TracingAsyncMongoClient implements MongoClient {
 
   public TracingAsyncMongoClient(final Tracer tracer, final MongoClientSettings settings,
       final MongoDriverInformation mongoDriverInformation) {
-    TracingCommandListener tracingCommandListener = new TracingCommandListener.Builder(tracer)
-        .build();
-    this.mongoClient = MongoClients.create(MongoClientSettings.builder(settings)
-            .addCommandListener(tracingCommandListener)
-            .build(),
-        mongoDriverInformation);
+    this(new TracingCommandListener.Builder(tracer).build(), settings, mongoDriverInformation);
+  }
+
+  public TracingAsyncMongoClient(final TracingCommandListener tracingCommandListener,
+      final MongoClientSettings settings) {
+    this(tracingCommandListener, settings, null);
+  }
+
+  /**
+   * @param tracingCommandListener listener tracing the commands of this client, its tracer is
+   * used to propagate spans to callbacks
+   */
+  public TracingAsyncMongoClient(final TracingCommandListener tracingCommandListener,
+      final MongoClientSettings settings, final MongoDriverInformation mongoDriverInformation) {
+    this.tracingCommandListener = tracingCommandListener;
+    this.propagation = new SpanPropagation(tracingCommandListener.getTracer(),
+        Arrays.<Class<?>>asList(SingleResultCallback.class, Block.class),
+        Arrays.asList("com.mongodb.async.client"));
+    MongoClientSettings.Builder settingsBuilder = MongoClientSettings.builder(settings)
+        .addCommandListener(tracingCommandListener)
+        .applyToConnectionPoolSettings(new Block<ConnectionPoolSettings.Builder>() {
+          @Override
+          public void apply(ConnectionPoolSettings.Builder builder) {
+            builder.addConnectionPoolListener(
+                new TracingConnectionPoolListener(tracingCommandListener));
+          }
+        })
+        .applyToClusterSettings(new Block<ClusterSettings.Builder>() {
+          @Override
+          public void apply(ClusterSettings.Builder builder) {
+            // invalidates the cached peer tags of changed servers, even without topology tracing
+            builder.addClusterListener(new TracingClusterListener(
+                tracingCommandListener.isTopologyTracing()
+                    ? tracingCommandListener.getTracer() : null));
+          }
+        });
+    if (tracingCommandListener.isTopologyTracing()) {
+      settingsBuilder
+          .applyToServerSettings(new Block<ServerSettings.Builder>() {
+            @Override
+            public void apply(ServerSettings.Builder builder) {
+              builder.addServerMonitorListener(
+                  new TracingServerMonitorListener(tracingCommandListener.getTracer()));
+            }
+          });
+    }
+    this.mongoClient = MongoClients.create(settingsBuilder.build(), mongoDriverInformation);
   }
 
   @Override
@@ -69,7 +121,7 @@ public class TracingAsyncMongoClient implements MongoClient {
    */
   @Override
   public MongoDatabase getDatabase(String name) {
-    return mongoClient.getDatabase(name);
+    return propagation.wrap(MongoDatabase.class, mongoClient.getDatabase(name));
   }
 
   /**
@@ -78,6 +130,7 @@ public class TracingAsyncMongoClient implements MongoClient {
   @Override
   public void close() {
     mongoClient.close();
+    tracingCommandListener.close();
   }
 
   /**
@@ -93,7 +146,7 @@ public class TracingAsyncMongoClient implements MongoClient {
    */
   @Override
   public MongoIterable<String> listDatabaseNames() {
-    return mongoClient.listDatabaseNames();
+    return propagation.wrap(MongoIterable.class, mongoClient.listDatabaseNames());
   }
 
   /**
@@ -101,7 +154,7 @@ public class TracingAsyncMongoClient implements MongoClient {
    */
   @Override
   public MongoIterable<String> listDatabaseNames(ClientSession clientSession) {
-    return mongoClient.listDatabaseNames(clientSession);
+    return propagation.wrap(MongoIterable.class, mongoClient.listDatabaseNames(clientSession));
   }
 
   /**
@@ -109,7 +162,7 @@ public class TracingAsyncMongoClient implements MongoClient {
    */
   @Override
   public ListDatabasesIterable<Document> listDatabases() {
-    return mongoClient.listDatabases();
+    return propagation.wrap(ListDatabasesIterable.class, mongoClient.listDatabases());
   }
 
   /**
@@ -117,7 +170,7 @@ public class TracingAsyncMongoClient implements MongoClient {
    */
   @Override
   public ListDatabasesIterable<Document> listDatabases(ClientSession clientSession) {
-    return mongoClient.listDatabases(clientSession);
+    return propagation.wrap(ListDatabasesIterable.class, mongoClient.listDatabases(clientSession));
   }
 
   /**
@@ -125,7 +178,7 @@ public class TracingAsyncMongoClient implements MongoClient {
    */
   @Override
   public <TResult> ListDatabasesIterable<TResult> listDatabases(Class<TResult> tResultClass) {
-    return mongoClient.listDatabases(tResultClass);
+    return propagation.wrap(ListDatabasesIterable.class, mongoClient.listDatabases(tResultClass));
   }
 
   /**
@@ -134,50 +187,52 @@ public class TracingAsyncMongoClient implements MongoClient {
   @Override
   public <TResult> ListDatabasesIterable<TResult> listDatabases(ClientSession clientSession,
       Class<TResult> aClass) {
-    return mongoClient.listDatabases(clientSession, aClass);
+    return propagation.wrap(ListDatabasesIterable.class,
+        mongoClient.listDatabases(clientSession, aClass));
   }
 
   @Override
   public ChangeStreamIterable<Document> watch() {
-    return mongoClient.watch();
+    return propagation.wrap(ChangeStreamIterable.class, mongoClient.watch());
   }
 
   @Override
   public <TResult> ChangeStreamIterable<TResult> watch(Class<TResult> tResultClass) {
-    return mongoClient.watch(tResultClass);
+    return propagation.wrap(ChangeStreamIterable.class, mongoClient.watch(tResultClass));
   }
 
   @Override
   public ChangeStreamIterable<Document> watch(List<? extends Bson> pipeline) {
-    return mongoClient.watch(pipeline);
+    return propagation.wrap(ChangeStreamIterable.class, mongoClient.watch(pipeline));
   }
 
   @Override
   public <TResult> ChangeStreamIterable<TResult> watch(List<? extends Bson> pipeline,
       Class<TResult> tResultClass) {
-    return mongoClient.watch(pipeline, tResultClass);
+    return propagation.wrap(ChangeStreamIterable.class, mongoClient.watch(pipeline, tResultClass));
   }
 
   @Override
   public ChangeStreamIterable<Document> watch(ClientSession clientSession) {
-    return mongoClient.watch(clientSession);
+    return propagation.wrap(ChangeStreamIterable.class, mongoClient.watch(clientSession));
   }
 
   @Override
   public <TResult> ChangeStreamIterable<TResult> watch(ClientSession clientSession,
       Class<TResult> tResultClass) {
-    return mongoClient.watch(clientSession, tResultClass);
+    return propagation.wrap(ChangeStreamIterable.class,
+        mongoClient.watch(clientSession, tResultClass));
   }
 
   @Override
   public ChangeStreamIterable<Document> watch(ClientSession clientSession,
       List<? extends Bson> pipeline) {
-    return mongoClient.watch(clientSession, pipeline);
+    return propagation.wrap(ChangeStreamIterable.class, mongoClient.watch(clientSession, pipeline));
   }
 
   @Override
   public <TResult> ChangeStreamIterable<TResult> watch(ClientSession clientSession,
       List<? extends Bson> pipeline, Class<TResult> tResultClass) {
-    return mongoClient.watch(pipeline, tResultClass);
+    return propagation.wrap(ChangeStreamIterable.class, mongoClient.watch(pipeline, tResultClass));
   }
 }
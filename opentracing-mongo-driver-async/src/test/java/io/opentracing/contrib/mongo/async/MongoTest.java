@@ -29,14 +29,17 @@ import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
 import de.flapdoodle.embed.mongo.config.Net;
 import de.flapdoodle.embed.mongo.distribution.Version;
 import de.flapdoodle.embed.process.runtime.Network;
+import io.opentracing.contrib.mongo.common.ExcludedCommand;
 import io.opentracing.contrib.mongo.common.TracingCommandListener;
 import io.opentracing.mock.MockSpan;
 import io.opentracing.mock.MockTracer;
 import io.opentracing.tag.Tags;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import org.bson.BsonNull;
 import org.bson.Document;
 import org.junit.After;
 import org.junit.Before;
@@ -112,6 +115,35 @@ public class MongoTest {
     assertNull(mockTracer.activeSpan());
   }
 
+  @Test
+  public void asyncWithListener() throws Exception {
+    MongoClientSettings settings = MongoClientSettings.builder()
+        .applyConnectionString(
+            new ConnectionString("mongodb://localhost:" + mongodConfig.net().getPort()))
+        .build();
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer)
+        .withExcludedCommands(Collections.singletonList(
+            new ExcludedCommand("insert", BsonNull.VALUE)))
+        .build();
+
+    com.mongodb.async.client.MongoClient mongoClient = new TracingAsyncMongoClient(listener,
+        settings);
+
+    final CountDownLatch latch = new CountDownLatch(1);
+    mongoClient.getDatabase("test").getCollection("test").insertOne(
+        new Document("testDoc", new Date()), new SingleResultCallback<Void>() {
+          @Override
+          public void onResult(Void result, Throwable t) {
+            latch.countDown();
+          }
+        });
+
+    assertTrue(latch.await(30, TimeUnit.SECONDS));
+    mongoClient.close();
+
+    assertTrue(mockTracer.finishedSpans().isEmpty());
+  }
+
   private void checkSpans(List<MockSpan> mockSpans) {
     for (MockSpan mockSpan : mockSpans) {
       String operationName = mockSpan.operationName();
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.reactivestreams;
+
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.contrib.mongo.common.TracingCommandListener;
+import io.opentracing.tag.Tags;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Traces the lifetime of a cursor from {@code subscribe} to {@code onComplete}, {@code onError} or
+ * {@code cancel} in a single span, the parent of the spans of the cursor's commands.
+ *
+ * <p>The span records the documents emitted, the requests of the subscriber answered with at least
+ * one document and the time spent waiting for the subscriber to request more documents after it received all
+ * it requested, which tells slow consumers apart from slow servers.
+ */
+final class TracingCursorSubscriber<T> implements Subscriber<T> {
+  static final String DOCUMENTS_TAG = "cursor.documents";
+  static final String REQUESTS_TAG = "cursor.requests";
+  static final String DOWNSTREAM_WAIT_TAG = "cursor.downstream_wait_us";
+  static final String CANCELLED_TAG = "cursor.cancelled";
+
+  private final Tracer tracer;
+  private final Subscriber<T> delegate;
+  private final Span span;
+  private final AtomicBoolean finished = new AtomicBoolean();
+
+  // guarded by this
+  private long demand;
+  private long documents;
+  private long requests;
+  private boolean deliveredSinceRequest;
+  private long waitStartNanos;
+  private long downstreamWaitNanos;
+
+  TracingCursorSubscriber(Tracer tracer, String operationName, Subscriber<T> delegate,
+      Span parent) {
+    this.tracer = tracer;
+    this.delegate = delegate;
+    Tracer.SpanBuilder spanBuilder = tracer.buildSpan(operationName + ".cursor")
+        .withTag(Tags.COMPONENT.getKey(), TracingCommandListener.COMPONENT_NAME);
+    if (parent != null) {
+      spanBuilder.asChildOf(parent);
+    }
+    this.span = spanBuilder.start();
+    this.waitStartNanos = System.nanoTime();
+  }
+
+  @Override
+  public void onSubscribe(final Subscription subscription) {
+    try (Scope scope = tracer.activateSpan(span)) {
+      delegate.onSubscribe(new Subscription() {
+        @Override
+        public void request(long n) {
+          requested(n);
+          try (Scope scope = tracer.activateSpan(span)) {
+            subscription.request(n);
+          }
+        }
+
+        @Override
+        public void cancel() {
+          try (Scope scope = tracer.activateSpan(span)) {
+            subscription.cancel();
+          }
+          span.setTag(CANCELLED_TAG, true);
+          finish();
+        }
+      });
+    }
+  }
+
+  @Override
+  public void onNext(T document) {
+    delivered();
+    try (Scope scope = tracer.activateSpan(span)) {
+      delegate.onNext(document);
+    }
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    Tags.ERROR.set(span, Boolean.TRUE);
+    try (Scope scope = tracer.activateSpan(span)) {
+      delegate.onError(throwable);
+    }
+    finish();
+  }
+
+  @Override
+  public void onComplete() {
+    try (Scope scope = tracer.activateSpan(span)) {
+      delegate.onComplete();
+    }
+    finish();
+  }
+
+  private synchronized void requested(long n) {
+    if (n <= 0) {
+      return;
+    }
+    if (demand == 0 && waitStartNanos != 0) {
+      downstreamWaitNanos += System.nanoTime() - waitStartNanos;
+      waitStartNanos = 0;
+    }
+    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+    deliveredSinceRequest = false;
+  }
+
+  private synchronized void delivered() {
+    documents++;
+    if (!deliveredSinceRequest) {
+      deliveredSinceRequest = true;
+      requests++;
+    }
+    if (demand != Long.MAX_VALUE && --demand == 0) {
+      waitStartNanos = System.nanoTime();
+    }
+  }
+
+  private void finish() {
+    if (!finished.compareAndSet(false, true)) {
+      return;
+    }
+    synchronized (this) {
+      span.setTag(DOCUMENTS_TAG, documents);
+      span.setTag(REQUESTS_TAG, requests);
+      span.setTag(DOWNSTREAM_WAIT_TAG, TimeUnit.NANOSECONDS.toMicros(downstreamWaitNanos));
+    }
+    span.finish();
+  }
+}
@@ -14,16 +14,28 @@
 package io.opentracing.contrib.mongo.reactivestreams;
 
 
+import com.mongodb.Block;
 import com.mongodb.ClientSessionOptions;
 import com.mongodb.MongoClientSettings;
 import com.mongodb.MongoDriverInformation;
+import com.mongodb.connection.ClusterSettings;
+import com.mongodb.connection.ConnectionPoolSettings;
+import com.mongodb.connection.ServerSettings;
 import com.mongodb.reactivestreams.client.*;
+import io.opentracing.Span;
 import io.opentracing.Tracer;
+import io.opentracing.contrib.mongo.common.SpanPropagation;
+import io.opentracing.contrib.mongo.common.TracingClusterListener;
 import io.opentracing.contrib.mongo.common.TracingCommandListener;
+import io.opentracing.contrib.mongo.common.TracingConnectionPoolListener;
+import io.opentracing.contrib.mongo.common.TracingServerMonitorListener;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -32,6 +44,8 @@ import java.util.List;
 public class TracingReactiveStreamsMongoClient implements MongoClient {
 
   private final MongoClient mongoClient;
+  private final SpanPropagation propagation;
+  private final TracingCommandListener tracingCommandListener;
 
   public TracingReactiveStreamsMongoClient(final Tracer tracer, final MongoClientSettings settings) {
     this(tracer, settings, null);
@@ -39,22 +53,66 @@ public class TracingReactiveStreamsMongoClient implements MongoClient {
 
   public TracingReactiveStreamsMongoClient(final Tracer tracer, final MongoClientSettings settings,
       final MongoDriverInformation mongoDriverInformation) {
-    TracingCommandListener tracingCommandListener = new TracingCommandListener.Builder(tracer)
-        .build();
-    this.mongoClient = MongoClients.create(MongoClientSettings.builder(settings)
-            .addCommandListener(tracingCommandListener)
-            .build(),
-        mongoDriverInformation);
+    this(new TracingCommandListener.Builder(tracer).build(), settings, mongoDriverInformation);
+  }
+
+  public TracingReactiveStreamsMongoClient(final TracingCommandListener tracingCommandListener,
+      final MongoClientSettings settings) {
+    this(tracingCommandListener, settings, null);
+  }
+
+  /**
+   * @param tracingCommandListener listener tracing the commands of this client, its tracer is
+   * used to propagate spans to subscribers and trace cursors
+   */
+  public TracingReactiveStreamsMongoClient(final TracingCommandListener tracingCommandListener,
+      final MongoClientSettings settings, final MongoDriverInformation mongoDriverInformation) {
+    this.tracingCommandListener = tracingCommandListener;
+    Tracer tracer = tracingCommandListener.getTracer();
+    this.propagation = new SpanPropagation(tracer,
+        Arrays.<Class<?>>asList(Subscriber.class, Subscription.class),
+        Arrays.asList("com.mongodb.reactivestreams.client", "org.reactivestreams"),
+        new CursorTracing(tracer));
+    MongoClientSettings.Builder settingsBuilder = MongoClientSettings.builder(settings)
+        .addCommandListener(tracingCommandListener)
+        .applyToConnectionPoolSettings(new Block<ConnectionPoolSettings.Builder>() {
+          @Override
+          public void apply(ConnectionPoolSettings.Builder builder) {
+            builder.addConnectionPoolListener(
+                new TracingConnectionPoolListener(tracingCommandListener));
+          }
+        })
+        .applyToClusterSettings(new Block<ClusterSettings.Builder>() {
+          @Override
+          public void apply(ClusterSettings.Builder builder) {
+            // invalidates the cached peer tags of changed servers, even without topology tracing
+            builder.addClusterListener(new TracingClusterListener(
+                tracingCommandListener.isTopologyTracing()
+                    ? tracingCommandListener.getTracer() : null));
+          }
+        });
+    if (tracingCommandListener.isTopologyTracing()) {
+      settingsBuilder
+          .applyToServerSettings(new Block<ServerSettings.Builder>() {
+            @Override
+            public void apply(ServerSettings.Builder builder) {
+              builder.addServerMonitorListener(
+                  new TracingServerMonitorListener(tracingCommandListener.getTracer()));
+            }
+          });
+    }
+    this.mongoClient = MongoClients.create(settingsBuilder.build(), mongoDriverInformation);
   }
 
   @Override
   public MongoDatabase getDatabase(String name) {
-    return mongoClient.getDatabase(name);
+    return propagation.wrap(MongoDatabase.class, mongoClient.getDatabase(name));
   }
 
   @Override
   public void close() {
     mongoClient.close();
+    tracingCommandListener.close();
   }
 
   @Override
@@ -64,72 +122,72 @@ public class TracingReactiveStreamsMongoClient implements MongoClient {
 
   @Override
   public Publisher<String> listDatabaseNames() {
-    return mongoClient.listDatabaseNames();
+    return propagation.wrap(Publisher.class, mongoClient.listDatabaseNames());
   }
 
   @Override
   public Publisher<String> listDatabaseNames(ClientSession clientSession) {
-    return mongoClient.listDatabaseNames(clientSession);
+    return propagation.wrap(Publisher.class, mongoClient.listDatabaseNames(clientSession));
   }
 
   @Override
   public ListDatabasesPublisher<Document> listDatabases() {
-    return mongoClient.listDatabases();
+    return propagation.wrap(ListDatabasesPublisher.class, mongoClient.listDatabases());
   }
 
   @Override
   public <TResult> ListDatabasesPublisher<TResult> listDatabases(Class<TResult> aClass) {
-    return mongoClient.listDatabases(aClass);
+    return propagation.wrap(ListDatabasesPublisher.class, mongoClient.listDatabases(aClass));
   }
 
   @Override
   public ListDatabasesPublisher<Document> listDatabases(ClientSession clientSession) {
-    return mongoClient.listDatabases(clientSession);
+    return propagation.wrap(ListDatabasesPublisher.class, mongoClient.listDatabases(clientSession));
   }
 
   @Override
   public <TResult> ListDatabasesPublisher<TResult> listDatabases(ClientSession clientSession, Class<TResult> aClass) {
-    return mongoClient.listDatabases(clientSession, aClass);
+    return propagation.wrap(ListDatabasesPublisher.class, mongoClient.listDatabases(clientSession, aClass));
   }
 
   @Override
   public ChangeStreamPublisher<Document> watch() {
-    return mongoClient.watch();
+    return propagation.wrap(ChangeStreamPublisher.class, mongoClient.watch());
   }
 
   @Override
   public <TResult> ChangeStreamPublisher<TResult> watch(Class<TResult> aClass) {
-    return mongoClient.watch(aClass);
+    return propagation.wrap(ChangeStreamPublisher.class, mongoClient.watch(aClass));
   }
 
   @Override
   public ChangeStreamPublisher<Document> watch(List<? extends Bson> list) {
-    return mongoClient.watch(list);
+    return propagation.wrap(ChangeStreamPublisher.class, mongoClient.watch(list));
   }
 
   @Override
   public <TResult> ChangeStreamPublisher<TResult> watch(List<? extends Bson> list, Class<TResult> aClass) {
-    return mongoClient.watch(list, aClass);
+    return propagation.wrap(ChangeStreamPublisher.class, mongoClient.watch(list, aClass));
   }
 
   @Override
   public ChangeStreamPublisher<Document> watch(ClientSession clientSession) {
-    return mongoClient.watch(clientSession);
+    return propagation.wrap(ChangeStreamPublisher.class, mongoClient.watch(clientSession));
   }
 
   @Override
   public <TResult> ChangeStreamPublisher<TResult> watch(ClientSession clientSession, Class<TResult> aClass) {
-    return mongoClient.watch(clientSession, aClass);
+    return propagation.wrap(ChangeStreamPublisher.class, mongoClient.watch(clientSession, aClass));
   }
 
   @Override
   public ChangeStreamPublisher<Document> watch(ClientSession clientSession, List<? extends Bson> list) {
-    return mongoClient.watch(clientSession, list);
+    return propagation.wrap(ChangeStreamPublisher.class, mongoClient.watch(clientSession, list));
   }
 
   @Override
   public <TResult> ChangeStreamPublisher<TResult> watch(ClientSession clientSession, List<? extends Bson> list, Class<TResult> aClass) {
-    return mongoClient.watch(clientSession, list, aClass);
+    return propagation.wrap(ChangeStreamPublisher.class, mongoClient.watch(clientSession, list, aClass));
   }
 
   @Override
@@ -141,4 +199,31 @@ public class TracingReactiveStreamsMongoClient implements MongoClient {
   public Publisher<ClientSession> startSession(ClientSessionOptions clientSessionOptions) {
     return mongoClient.startSession(clientSessionOptions);
   }
+
+  /**
+   * Traces the lifetime of the cursors of find and aggregate publishers
+   */
+  private static final class CursorTracing implements SpanPropagation.CallbackDecorator {
+    private final Tracer tracer;
+
+    private CursorTracing(Tracer tracer) {
+      this.tracer = tracer;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object decorate(Class<?> type, Class<?> callbackType, Object callback, Span span) {
+      if (callbackType != Subscriber.class) {
+        return callback;
+      }
+      if (type == FindPublisher.class) {
+        return new TracingCursorSubscriber<>(tracer, "find", (Subscriber<Object>) callback, span);
+      }
+      if (type == AggregatePublisher.class) {
+        return new TracingCursorSubscriber<>(tracer, "aggregate", (Subscriber<Object>) callback,
+            span);
+      }
+      return callback;
+    }
+  }
 }
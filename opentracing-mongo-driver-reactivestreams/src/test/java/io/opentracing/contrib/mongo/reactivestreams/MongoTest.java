@@ -21,6 +21,7 @@ import static org.junit.Assert.assertTrue;
 
 import com.mongodb.ConnectionString;
 import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoDriverInformation;
 import com.mongodb.reactivestreams.client.MongoClient;
 import com.mongodb.reactivestreams.client.MongoCollection;
 import com.mongodb.reactivestreams.client.MongoDatabase;
@@ -32,14 +33,18 @@ import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
 import de.flapdoodle.embed.mongo.config.Net;
 import de.flapdoodle.embed.mongo.distribution.Version;
 import de.flapdoodle.embed.process.runtime.Network;
+import io.opentracing.contrib.mongo.common.ExcludedCommand;
 import io.opentracing.contrib.mongo.common.TracingCommandListener;
+import io.opentracing.contrib.mongo.common.providers.PrefixSpanNameProvider;
 import io.opentracing.mock.MockSpan;
 import io.opentracing.mock.MockTracer;
 import io.opentracing.tag.Tags;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import org.bson.BsonNull;
 import org.bson.Document;
 import org.junit.After;
 import org.junit.Before;
@@ -142,6 +147,71 @@ public class MongoTest {
     assertNull(mockTracer.activeSpan());
   }
 
+  @Test
+  public void reactiveStreamsWithListener() throws Exception {
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer)
+        .withExcludedCommands(Collections.singletonList(
+            new ExcludedCommand("insert", BsonNull.VALUE)))
+        .build();
+
+    MongoClient mongoClient = new TracingReactiveStreamsMongoClient(listener, settings());
+    insertOne(mongoClient);
+    mongoClient.close();
+
+    assertTrue(mockTracer.finishedSpans().isEmpty());
+  }
+
+  @Test
+  public void reactiveStreamsWithListenerAndDriverInformation() throws Exception {
+    TracingCommandListener listener = new TracingCommandListener.Builder(mockTracer)
+        .withSpanNameProvider(new PrefixSpanNameProvider("mongo."))
+        .build();
+
+    MongoClient mongoClient = new TracingReactiveStreamsMongoClient(listener, settings(),
+        MongoDriverInformation.builder().driverName("test").build());
+    insertOne(mongoClient);
+    mongoClient.close();
+
+    List<MockSpan> finished = mockTracer.finishedSpans();
+    assertEquals(1, finished.size());
+    assertEquals("mongo.insert", finished.get(0).operationName());
+    assertEquals(TracingCommandListener.COMPONENT_NAME,
+        finished.get(0).tags().get(Tags.COMPONENT.getKey()));
+  }
+
+  private MongoClientSettings settings() {
+    return MongoClientSettings.builder()
+        .applyConnectionString(
+            new ConnectionString("mongodb://localhost:" + mongodConfig.net().getPort()))
+        .build();
+  }
+
+  private static void insertOne(MongoClient mongoClient) throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    mongoClient.getDatabase("test").getCollection("test")
+        .insertOne(new Document("testDoc", new Date())).subscribe(new Subscriber<Success>() {
+          @Override
+          public void onSubscribe(final Subscription s) {
+            s.request(1);
+          }
+
+          @Override
+          public void onNext(final Success success) {
+          }
+
+          @Override
+          public void onError(final Throwable t) {
+            latch.countDown();
+          }
+
+          @Override
+          public void onComplete() {
+            latch.countDown();
+          }
+        });
+    assertTrue(latch.await(30, TimeUnit.SECONDS));
+  }
+
   private void checkSpans(List<MockSpan> mockSpans) {
     for (MockSpan mockSpan : mockSpans) {
       String operationName = mockSpan.operationName();
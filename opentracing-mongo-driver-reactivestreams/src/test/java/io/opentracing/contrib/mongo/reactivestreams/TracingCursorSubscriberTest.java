@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.mongo.reactivestreams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.opentracing.Span;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+public class TracingCursorSubscriberTest {
+
+  private final MockTracer tracer = new MockTracer();
+
+  @Test
+  public void testCursorLifetimeTraced() throws InterruptedException {
+    MockSpan parent = tracer.buildSpan("parent").start();
+    RecordingSubscriber downstream = new RecordingSubscriber();
+    final List<Span> requestSpans = new ArrayList<>();
+    TracingCursorSubscriber<String> subscriber = new TracingCursorSubscriber<>(tracer, "find",
+        downstream, parent);
+    subscriber.onSubscribe(new Subscription() {
+      @Override
+      public void request(long n) {
+        requestSpans.add(tracer.activeSpan());
+      }
+
+      @Override
+      public void cancel() {
+      }
+    });
+
+    downstream.subscription.request(2);
+    subscriber.onNext("a");
+    subscriber.onNext("b");
+    Thread.sleep(5);
+    downstream.subscription.request(2);
+    subscriber.onNext("c");
+    subscriber.onComplete();
+
+    MockSpan cursor = tracer.finishedSpans().get(0);
+    assertEquals("find.cursor", cursor.operationName());
+    assertEquals(parent.context().spanId(), cursor.parentId());
+    assertSame(cursor, requestSpans.get(0));
+    assertSame(cursor, downstream.nextSpans.get(0));
+    assertEquals(3L, cursor.tags().get(TracingCursorSubscriber.DOCUMENTS_TAG));
+    assertEquals(2L, cursor.tags().get(TracingCursorSubscriber.REQUESTS_TAG));
+    assertTrue((Long) cursor.tags().get(TracingCursorSubscriber.DOWNSTREAM_WAIT_TAG) >= 5000);
+    assertNull(tracer.activeSpan());
+  }
+
+  @Test
+  public void testCancelFinishesSpan() {
+    RecordingSubscriber downstream = new RecordingSubscriber();
+    TracingCursorSubscriber<String> subscriber = new TracingCursorSubscriber<>(tracer,
+        "aggregate", downstream, null);
+    subscriber.onSubscribe(new Subscription() {
+      @Override
+      public void request(long n) {
+      }
+
+      @Override
+      public void cancel() {
+      }
+    });
+    downstream.subscription.cancel();
+    subscriber.onComplete();
+
+    assertEquals(1, tracer.finishedSpans().size());
+    assertEquals(Boolean.TRUE,
+        tracer.finishedSpans().get(0).tags().get(TracingCursorSubscriber.CANCELLED_TAG));
+  }
+
+  private class RecordingSubscriber implements Subscriber<String> {
+    private Subscription subscription;
+    private final List<Span> nextSpans = new ArrayList<>();
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(String document) {
+      nextSpans.add(tracer.activeSpan());
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+    }
+
+    @Override
+    public void onComplete() {
+    }
+  }
+}
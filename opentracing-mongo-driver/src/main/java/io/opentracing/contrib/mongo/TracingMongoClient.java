@@ -19,7 +19,10 @@ import com.mongodb.MongoClientURI;
 import com.mongodb.MongoCredential;
 import com.mongodb.MongoDriverInformation;
 import com.mongodb.ServerAddress;
+import io.opentracing.contrib.mongo.common.TracingClusterListener;
 import io.opentracing.contrib.mongo.common.TracingCommandListener;
+import io.opentracing.contrib.mongo.common.TracingConnectionPoolListener;
+import io.opentracing.contrib.mongo.common.TracingServerMonitorListener;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -30,6 +33,7 @@ import java.util.List;
  * @see MongoClient
  */
 public class TracingMongoClient extends MongoClient {
+  private final TracingCommandListener listener;
 
   public TracingMongoClient(TracingCommandListener listener) {
     this(listener, new ServerAddress());
@@ -59,22 +63,20 @@ public class TracingMongoClient extends MongoClient {
 
   public TracingMongoClient(TracingCommandListener listener, final ServerAddress addr,
       final MongoClientOptions options) {
-    super(addr, MongoClientOptions.builder(options)
-        .addCommandListener(listener).build());
+    super(addr, withTracing(listener, options));
+    this.listener = listener;
   }
 
   public TracingMongoClient(TracingCommandListener listener, final ServerAddress addr,
       final List<MongoCredential> credentialsList, final MongoClientOptions options) {
-    super(addr, credentialsList,
-        MongoClientOptions.builder(options)
-            .addCommandListener(listener).build());
+    super(addr, credentialsList, withTracing(listener, options));
+    this.listener = listener;
   }
 
   public TracingMongoClient(TracingCommandListener listener, final ServerAddress addr,
       final MongoCredential credential, final MongoClientOptions options) {
-    super(addr, credential,
-        MongoClientOptions.builder(options)
-            .addCommandListener(listener).build());
+    super(addr, credential, withTracing(listener, options));
+    this.listener = listener;
   }
 
   public TracingMongoClient(TracingCommandListener listener, final List<ServerAddress> seeds) {
@@ -88,21 +90,20 @@ public class TracingMongoClient extends MongoClient {
 
   public TracingMongoClient(TracingCommandListener listener, final List<ServerAddress> seeds,
       final MongoClientOptions options) {
-    super(seeds, MongoClientOptions.builder(options)
-        .addCommandListener(listener).build());
+    super(seeds, withTracing(listener, options));
+    this.listener = listener;
   }
 
   public TracingMongoClient(TracingCommandListener listener, final List<ServerAddress> seeds,
       final List<MongoCredential> credentialsList, final MongoClientOptions options) {
-    super(seeds, credentialsList,
-        MongoClientOptions.builder(options)
-            .addCommandListener(listener).build());
+    super(seeds, credentialsList, withTracing(listener, options));
+    this.listener = listener;
   }
 
   public TracingMongoClient(TracingCommandListener listener, final List<ServerAddress> seeds,
       final MongoCredential credential, final MongoClientOptions options) {
-    super(seeds, credential,
-        MongoClientOptions.builder(options).addCommandListener(listener).build());
+    super(seeds, credential, withTracing(listener, options));
+    this.listener = listener;
   }
 
   public TracingMongoClient(TracingCommandListener listener, final MongoClientURI uri) {
@@ -112,9 +113,9 @@ public class TracingMongoClient extends MongoClient {
   public TracingMongoClient(TracingCommandListener listener, final List<ServerAddress> seeds,
       final MongoCredential credential, final MongoClientOptions options,
       final MongoDriverInformation mongoDriverInformation) {
-    super(seeds, credential,
-        MongoClientOptions.builder(options).addCommandListener(listener).build(),
+    super(seeds, credential, withTracing(listener, options),
         mongoDriverInformation);
+    this.listener = listener;
   }
 
   public TracingMongoClient(TracingCommandListener listener, final MongoClientURI uri,
@@ -129,17 +130,41 @@ public class TracingMongoClient extends MongoClient {
   public TracingMongoClient(TracingCommandListener listener, final ServerAddress addr,
       final List<MongoCredential> credentialsList, final MongoClientOptions options,
       final MongoDriverInformation mongoDriverInformation) {
-    super(addr, credentialsList,
-        MongoClientOptions.builder(options).addCommandListener(listener).build(),
+    super(addr, credentialsList, withTracing(listener, options),
         mongoDriverInformation);
+    this.listener = listener;
   }
 
   public TracingMongoClient(TracingCommandListener listener, final List<ServerAddress> seeds,
       final List<MongoCredential> credentialsList, final MongoClientOptions options,
       final MongoDriverInformation mongoDriverInformation) {
-    super(seeds, credentialsList,
-        MongoClientOptions.builder(options).addCommandListener(listener).build(),
+    super(seeds, credentialsList, withTracing(listener, options),
         mongoDriverInformation);
+    this.listener = listener;
+  }
+
+  /**
+   * Closes the client, then the listener
+   */
+  @Override
+  public void close() {
+    super.close();
+    listener.close();
+  }
+
+  private static MongoClientOptions withTracing(TracingCommandListener listener,
+      MongoClientOptions options) {
+    MongoClientOptions.Builder builder = MongoClientOptions.builder(options)
+        .addCommandListener(listener)
+        .addConnectionPoolListener(new TracingConnectionPoolListener(listener));
+    if (listener.isTopologyTracing()) {
+      builder.addClusterListener(new TracingClusterListener(listener.getTracer()))
+          .addServerMonitorListener(new TracingServerMonitorListener(listener.getTracer()));
+    } else {
+      // still invalidates the cached peer tags of changed servers
+      builder.addClusterListener(new TracingClusterListener());
+    }
+    return builder.build();
   }
 
   private static List<ServerAddress> toServerAddressList(List<String> hosts) {
@@ -14,10 +14,12 @@
 package io.opentracing.contrib.mongo;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
 import com.mongodb.MongoDriverInformation;
+import io.opentracing.contrib.mongo.common.TracingClusterListener;
 import io.opentracing.contrib.mongo.common.TracingCommandListener;
 import io.opentracing.noop.NoopTracerFactory;
 import java.net.UnknownHostException;
@@ -34,4 +36,17 @@ public class TracingMongoClientTest {
     assertEquals(1, mongoClient.getMongoClientOptions().getCommandListeners().size());
     mongoClient.close();
   }
-}
\ No newline at end of file
+
+  @Test
+  public void peer_tags_invalidated_without_topology_tracing() throws UnknownHostException {
+    MongoClient mongoClient = new TracingMongoClient(
+        new TracingCommandListener.Builder(NoopTracerFactory.create()).build(),
+        new MongoClientURI("mongodb://localhost"),
+        MongoDriverInformation.builder().build());
+    assertEquals(1, mongoClient.getMongoClientOptions().getClusterListeners().size());
+    assertTrue(mongoClient.getMongoClientOptions().getClusterListeners().get(0)
+        instanceof TracingClusterListener);
+    assertTrue(mongoClient.getMongoClientOptions().getServerMonitorListeners().isEmpty());
+    mongoClient.close();
+  }
+}